@@ -0,0 +1,668 @@
+/*******************************************************************************
+ *
+ * Pentaho Data Integration
+ *
+ * Copyright (C) 2002-2012 by Pentaho : http://www.pentaho.com
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+package org.pentaho.di.trans.steps.detectrowchange;
+
+import java.util.Locale;
+
+import org.pentaho.di.core.exception.KettleException;
+import org.pentaho.di.core.exception.KettleValueException;
+import org.pentaho.di.core.row.ValueMetaInterface;
+
+/**
+ * A change condition for a single field, such as <code>abs(new - old) / abs(old) &gt; 5%</code> or
+ * <code>prefix(old, 3) != prefix(new, 3)</code>. The expression is parsed once into a tree of typed nodes, one class
+ * per operator, bound to the field's value type. Evaluating a row passes the old and new values as primitives down the
+ * tree, with no boxing, no operator dispatch and no re-parsing.
+ *
+ * If either value is null the condition is not evaluated and the field counts as changed when only one side is null.
+ * Numeric comparisons follow Java semantics: a comparison with NaN (for example 0 / 0) is false, except != which is
+ * true.
+ *
+ * Numeric operands are evaluated as double. Integers beyond 2^53 and big numbers with more than about 15 significant
+ * digits are rounded, so <code>old != new</code> can miss a change between two such values that round to the same
+ * double. {@link #isExact(ValueMetaInterface)} tells which fields are affected; the step check warns about them.
+ */
+public class ChangeCondition {
+
+  static final int TYPE_NUMBER = 1;
+  static final int TYPE_STRING = 2;
+  static final int TYPE_BOOLEAN = 3;
+
+  private final ValueMetaInterface valueMeta;
+
+  private final int operandType;
+
+  private final boolean dateOperand;
+
+  private final boolean normalStorage;
+
+  private final BoolNode root;
+
+  private ChangeCondition( ValueMetaInterface valueMeta, int operandType, BoolNode root ) {
+    this.valueMeta = valueMeta;
+    this.operandType = operandType;
+    this.dateOperand = valueMeta.isDate();
+    this.normalStorage = valueMeta.getStorageType() == ValueMetaInterface.STORAGE_TYPE_NORMAL;
+    this.root = root;
+  }
+
+  /**
+   * Compiles the expression for a field of the given type.
+   *
+   * @throws KettleException
+   *           if the expression is not valid for this field
+   */
+  public static ChangeCondition compile( String expression, ValueMetaInterface valueMeta ) throws KettleException {
+    int operandType = getOperandType( valueMeta );
+    BoolNode root = new ChangeConditionParser( expression, operandType ).parse();
+    return new ChangeCondition( valueMeta, operandType, root );
+  }
+
+  /**
+   * Numbers, integers, big numbers and dates (as milliseconds) are compared as numbers, booleans as booleans and
+   * everything else by its string representation.
+   */
+  static int getOperandType( ValueMetaInterface valueMeta ) {
+    if ( valueMeta.isNumeric() || valueMeta.isDate() ) {
+      return TYPE_NUMBER;
+    }
+    if ( valueMeta.isBoolean() ) {
+      return TYPE_BOOLEAN;
+    }
+    return TYPE_STRING;
+  }
+
+  /**
+   * @return false if values of this type can lose precision when a condition evaluates them as double (integers and
+   *         big numbers), true otherwise
+   */
+  public static boolean isExact( ValueMetaInterface valueMeta ) {
+    return !valueMeta.isInteger() && !valueMeta.isBigNumber();
+  }
+
+  public boolean isChanged( Object oldData, Object newData ) throws KettleValueException {
+    if ( valueMeta.isNull( oldData ) || valueMeta.isNull( newData ) ) {
+      return valueMeta.compare( oldData, newData ) != 0;
+    }
+    if ( operandType == TYPE_STRING ) {
+      return root.eval( 0, 0, valueMeta.getString( oldData ), valueMeta.getString( newData ) );
+    }
+    return root.eval( toNumber( oldData ), toNumber( newData ), null, null );
+  }
+
+  /**
+   * Numeric operands as double, booleans as 1 or 0.
+   */
+  private double toNumber( Object data ) throws KettleValueException {
+    if ( operandType == TYPE_BOOLEAN ) {
+      return valueMeta.getBoolean( data ).booleanValue() ? 1 : 0;
+    }
+    if ( dateOperand ) {
+      return valueMeta.getDate( data ).getTime();
+    }
+    if ( normalStorage && data instanceof Number ) {
+      return ( (Number) data ).doubleValue();
+    }
+    return valueMeta.getNumber( data ).doubleValue();
+  }
+
+  /**
+   * A node of the compiled expression, typed by its result. Every node is evaluated with the old and new value of the
+   * field: as numbers for numeric, date and boolean fields, as strings for all other fields.
+   */
+  abstract static class Node {
+    final int type;
+
+    Node( int type ) {
+      this.type = type;
+    }
+  }
+
+  abstract static class NumNode extends Node {
+    NumNode() {
+      super( TYPE_NUMBER );
+    }
+
+    abstract double eval( double oldNum, double newNum, String oldStr, String newStr );
+  }
+
+  abstract static class StrNode extends Node {
+    StrNode() {
+      super( TYPE_STRING );
+    }
+
+    abstract String eval( double oldNum, double newNum, String oldStr, String newStr );
+  }
+
+  abstract static class BoolNode extends Node {
+    BoolNode() {
+      super( TYPE_BOOLEAN );
+    }
+
+    abstract boolean eval( double oldNum, double newNum, String oldStr, String newStr );
+  }
+
+  // Literals and operands
+
+  static final class NumLiteral extends NumNode {
+    private final double value;
+
+    NumLiteral( double value ) {
+      this.value = value;
+    }
+
+    @Override
+    double eval( double oldNum, double newNum, String oldStr, String newStr ) {
+      return value;
+    }
+  }
+
+  static final class StrLiteral extends StrNode {
+    private final String value;
+
+    StrLiteral( String value ) {
+      this.value = value;
+    }
+
+    @Override
+    String eval( double oldNum, double newNum, String oldStr, String newStr ) {
+      return value;
+    }
+  }
+
+  static final class BoolLiteral extends BoolNode {
+    private final boolean value;
+
+    BoolLiteral( boolean value ) {
+      this.value = value;
+    }
+
+    @Override
+    boolean eval( double oldNum, double newNum, String oldStr, String newStr ) {
+      return value;
+    }
+  }
+
+  static final class OldNum extends NumNode {
+    @Override
+    double eval( double oldNum, double newNum, String oldStr, String newStr ) {
+      return oldNum;
+    }
+  }
+
+  static final class NewNum extends NumNode {
+    @Override
+    double eval( double oldNum, double newNum, String oldStr, String newStr ) {
+      return newNum;
+    }
+  }
+
+  static final class OldStr extends StrNode {
+    @Override
+    String eval( double oldNum, double newNum, String oldStr, String newStr ) {
+      return oldStr;
+    }
+  }
+
+  static final class NewStr extends StrNode {
+    @Override
+    String eval( double oldNum, double newNum, String oldStr, String newStr ) {
+      return newStr;
+    }
+  }
+
+  static final class OldBool extends BoolNode {
+    @Override
+    boolean eval( double oldNum, double newNum, String oldStr, String newStr ) {
+      return oldNum != 0;
+    }
+  }
+
+  static final class NewBool extends BoolNode {
+    @Override
+    boolean eval( double oldNum, double newNum, String oldStr, String newStr ) {
+      return newNum != 0;
+    }
+  }
+
+  // Arithmetic
+
+  static final class Add extends NumNode {
+    private final NumNode left;
+    private final NumNode right;
+
+    Add( NumNode left, NumNode right ) {
+      this.left = left;
+      this.right = right;
+    }
+
+    @Override
+    double eval( double oldNum, double newNum, String oldStr, String newStr ) {
+      return left.eval( oldNum, newNum, oldStr, newStr ) + right.eval( oldNum, newNum, oldStr, newStr );
+    }
+  }
+
+  static final class Subtract extends NumNode {
+    private final NumNode left;
+    private final NumNode right;
+
+    Subtract( NumNode left, NumNode right ) {
+      this.left = left;
+      this.right = right;
+    }
+
+    @Override
+    double eval( double oldNum, double newNum, String oldStr, String newStr ) {
+      return left.eval( oldNum, newNum, oldStr, newStr ) - right.eval( oldNum, newNum, oldStr, newStr );
+    }
+  }
+
+  static final class Multiply extends NumNode {
+    private final NumNode left;
+    private final NumNode right;
+
+    Multiply( NumNode left, NumNode right ) {
+      this.left = left;
+      this.right = right;
+    }
+
+    @Override
+    double eval( double oldNum, double newNum, String oldStr, String newStr ) {
+      return left.eval( oldNum, newNum, oldStr, newStr ) * right.eval( oldNum, newNum, oldStr, newStr );
+    }
+  }
+
+  static final class Divide extends NumNode {
+    private final NumNode left;
+    private final NumNode right;
+
+    Divide( NumNode left, NumNode right ) {
+      this.left = left;
+      this.right = right;
+    }
+
+    @Override
+    double eval( double oldNum, double newNum, String oldStr, String newStr ) {
+      return left.eval( oldNum, newNum, oldStr, newStr ) / right.eval( oldNum, newNum, oldStr, newStr );
+    }
+  }
+
+  static final class Negate extends NumNode {
+    private final NumNode operand;
+
+    Negate( NumNode operand ) {
+      this.operand = operand;
+    }
+
+    @Override
+    double eval( double oldNum, double newNum, String oldStr, String newStr ) {
+      return -operand.eval( oldNum, newNum, oldStr, newStr );
+    }
+  }
+
+  // Functions
+
+  static final class Abs extends NumNode {
+    private final NumNode operand;
+
+    Abs( NumNode operand ) {
+      this.operand = operand;
+    }
+
+    @Override
+    double eval( double oldNum, double newNum, String oldStr, String newStr ) {
+      return Math.abs( operand.eval( oldNum, newNum, oldStr, newStr ) );
+    }
+  }
+
+  static final class Length extends NumNode {
+    private final StrNode operand;
+
+    Length( StrNode operand ) {
+      this.operand = operand;
+    }
+
+    @Override
+    double eval( double oldNum, double newNum, String oldStr, String newStr ) {
+      return operand.eval( oldNum, newNum, oldStr, newStr ).length();
+    }
+  }
+
+  static final class Prefix extends StrNode {
+    private final StrNode operand;
+    private final NumNode length;
+
+    Prefix( StrNode operand, NumNode length ) {
+      this.operand = operand;
+      this.length = length;
+    }
+
+    @Override
+    String eval( double oldNum, double newNum, String oldStr, String newStr ) {
+      String s = operand.eval( oldNum, newNum, oldStr, newStr );
+      int n = (int) length.eval( oldNum, newNum, oldStr, newStr );
+      if ( n <= 0 ) {
+        return "";
+      }
+      return n >= s.length() ? s : s.substring( 0, n );
+    }
+  }
+
+  static final class Lower extends StrNode {
+    private final StrNode operand;
+
+    Lower( StrNode operand ) {
+      this.operand = operand;
+    }
+
+    @Override
+    String eval( double oldNum, double newNum, String oldStr, String newStr ) {
+      return operand.eval( oldNum, newNum, oldStr, newStr ).toLowerCase( Locale.ROOT );
+    }
+  }
+
+  static final class Upper extends StrNode {
+    private final StrNode operand;
+
+    Upper( StrNode operand ) {
+      this.operand = operand;
+    }
+
+    @Override
+    String eval( double oldNum, double newNum, String oldStr, String newStr ) {
+      return operand.eval( oldNum, newNum, oldStr, newStr ).toUpperCase( Locale.ROOT );
+    }
+  }
+
+  static final class Trim extends StrNode {
+    private final StrNode operand;
+
+    Trim( StrNode operand ) {
+      this.operand = operand;
+    }
+
+    @Override
+    String eval( double oldNum, double newNum, String oldStr, String newStr ) {
+      return operand.eval( oldNum, newNum, oldStr, newStr ).trim();
+    }
+  }
+
+  // Numeric comparisons, using the primitive operators so that any comparison with NaN is false (and != is true)
+
+  static final class NumEq extends BoolNode {
+    private final NumNode left;
+    private final NumNode right;
+
+    NumEq( NumNode left, NumNode right ) {
+      this.left = left;
+      this.right = right;
+    }
+
+    @Override
+    boolean eval( double oldNum, double newNum, String oldStr, String newStr ) {
+      return left.eval( oldNum, newNum, oldStr, newStr ) == right.eval( oldNum, newNum, oldStr, newStr );
+    }
+  }
+
+  static final class NumNe extends BoolNode {
+    private final NumNode left;
+    private final NumNode right;
+
+    NumNe( NumNode left, NumNode right ) {
+      this.left = left;
+      this.right = right;
+    }
+
+    @Override
+    boolean eval( double oldNum, double newNum, String oldStr, String newStr ) {
+      return left.eval( oldNum, newNum, oldStr, newStr ) != right.eval( oldNum, newNum, oldStr, newStr );
+    }
+  }
+
+  static final class NumLt extends BoolNode {
+    private final NumNode left;
+    private final NumNode right;
+
+    NumLt( NumNode left, NumNode right ) {
+      this.left = left;
+      this.right = right;
+    }
+
+    @Override
+    boolean eval( double oldNum, double newNum, String oldStr, String newStr ) {
+      return left.eval( oldNum, newNum, oldStr, newStr ) < right.eval( oldNum, newNum, oldStr, newStr );
+    }
+  }
+
+  static final class NumLe extends BoolNode {
+    private final NumNode left;
+    private final NumNode right;
+
+    NumLe( NumNode left, NumNode right ) {
+      this.left = left;
+      this.right = right;
+    }
+
+    @Override
+    boolean eval( double oldNum, double newNum, String oldStr, String newStr ) {
+      return left.eval( oldNum, newNum, oldStr, newStr ) <= right.eval( oldNum, newNum, oldStr, newStr );
+    }
+  }
+
+  static final class NumGt extends BoolNode {
+    private final NumNode left;
+    private final NumNode right;
+
+    NumGt( NumNode left, NumNode right ) {
+      this.left = left;
+      this.right = right;
+    }
+
+    @Override
+    boolean eval( double oldNum, double newNum, String oldStr, String newStr ) {
+      return left.eval( oldNum, newNum, oldStr, newStr ) > right.eval( oldNum, newNum, oldStr, newStr );
+    }
+  }
+
+  static final class NumGe extends BoolNode {
+    private final NumNode left;
+    private final NumNode right;
+
+    NumGe( NumNode left, NumNode right ) {
+      this.left = left;
+      this.right = right;
+    }
+
+    @Override
+    boolean eval( double oldNum, double newNum, String oldStr, String newStr ) {
+      return left.eval( oldNum, newNum, oldStr, newStr ) >= right.eval( oldNum, newNum, oldStr, newStr );
+    }
+  }
+
+  // String comparisons
+
+  static final class StrEq extends BoolNode {
+    private final StrNode left;
+    private final StrNode right;
+
+    StrEq( StrNode left, StrNode right ) {
+      this.left = left;
+      this.right = right;
+    }
+
+    @Override
+    boolean eval( double oldNum, double newNum, String oldStr, String newStr ) {
+      return left.eval( oldNum, newNum, oldStr, newStr ).equals( right.eval( oldNum, newNum, oldStr, newStr ) );
+    }
+  }
+
+  static final class StrNe extends BoolNode {
+    private final StrNode left;
+    private final StrNode right;
+
+    StrNe( StrNode left, StrNode right ) {
+      this.left = left;
+      this.right = right;
+    }
+
+    @Override
+    boolean eval( double oldNum, double newNum, String oldStr, String newStr ) {
+      return !left.eval( oldNum, newNum, oldStr, newStr ).equals( right.eval( oldNum, newNum, oldStr, newStr ) );
+    }
+  }
+
+  static final class StrLt extends BoolNode {
+    private final StrNode left;
+    private final StrNode right;
+
+    StrLt( StrNode left, StrNode right ) {
+      this.left = left;
+      this.right = right;
+    }
+
+    @Override
+    boolean eval( double oldNum, double newNum, String oldStr, String newStr ) {
+      return left.eval( oldNum, newNum, oldStr, newStr ).compareTo( right.eval( oldNum, newNum, oldStr, newStr ) ) < 0;
+    }
+  }
+
+  static final class StrLe extends BoolNode {
+    private final StrNode left;
+    private final StrNode right;
+
+    StrLe( StrNode left, StrNode right ) {
+      this.left = left;
+      this.right = right;
+    }
+
+    @Override
+    boolean eval( double oldNum, double newNum, String oldStr, String newStr ) {
+      return left.eval( oldNum, newNum, oldStr, newStr ).compareTo( right.eval( oldNum, newNum, oldStr, newStr ) ) <= 0;
+    }
+  }
+
+  static final class StrGt extends BoolNode {
+    private final StrNode left;
+    private final StrNode right;
+
+    StrGt( StrNode left, StrNode right ) {
+      this.left = left;
+      this.right = right;
+    }
+
+    @Override
+    boolean eval( double oldNum, double newNum, String oldStr, String newStr ) {
+      return left.eval( oldNum, newNum, oldStr, newStr ).compareTo( right.eval( oldNum, newNum, oldStr, newStr ) ) > 0;
+    }
+  }
+
+  static final class StrGe extends BoolNode {
+    private final StrNode left;
+    private final StrNode right;
+
+    StrGe( StrNode left, StrNode right ) {
+      this.left = left;
+      this.right = right;
+    }
+
+    @Override
+    boolean eval( double oldNum, double newNum, String oldStr, String newStr ) {
+      return left.eval( oldNum, newNum, oldStr, newStr ).compareTo( right.eval( oldNum, newNum, oldStr, newStr ) ) >= 0;
+    }
+  }
+
+  // Boolean equality and logic
+
+  static final class BoolEq extends BoolNode {
+    private final BoolNode left;
+    private final BoolNode right;
+
+    BoolEq( BoolNode left, BoolNode right ) {
+      this.left = left;
+      this.right = right;
+    }
+
+    @Override
+    boolean eval( double oldNum, double newNum, String oldStr, String newStr ) {
+      return left.eval( oldNum, newNum, oldStr, newStr ) == right.eval( oldNum, newNum, oldStr, newStr );
+    }
+  }
+
+  static final class BoolNe extends BoolNode {
+    private final BoolNode left;
+    private final BoolNode right;
+
+    BoolNe( BoolNode left, BoolNode right ) {
+      this.left = left;
+      this.right = right;
+    }
+
+    @Override
+    boolean eval( double oldNum, double newNum, String oldStr, String newStr ) {
+      return left.eval( oldNum, newNum, oldStr, newStr ) != right.eval( oldNum, newNum, oldStr, newStr );
+    }
+  }
+
+  static final class And extends BoolNode {
+    private final BoolNode left;
+    private final BoolNode right;
+
+    And( BoolNode left, BoolNode right ) {
+      this.left = left;
+      this.right = right;
+    }
+
+    @Override
+    boolean eval( double oldNum, double newNum, String oldStr, String newStr ) {
+      return left.eval( oldNum, newNum, oldStr, newStr ) && right.eval( oldNum, newNum, oldStr, newStr );
+    }
+  }
+
+  static final class Or extends BoolNode {
+    private final BoolNode left;
+    private final BoolNode right;
+
+    Or( BoolNode left, BoolNode right ) {
+      this.left = left;
+      this.right = right;
+    }
+
+    @Override
+    boolean eval( double oldNum, double newNum, String oldStr, String newStr ) {
+      return left.eval( oldNum, newNum, oldStr, newStr ) || right.eval( oldNum, newNum, oldStr, newStr );
+    }
+  }
+
+  static final class Not extends BoolNode {
+    private final BoolNode operand;
+
+    Not( BoolNode operand ) {
+      this.operand = operand;
+    }
+
+    @Override
+    boolean eval( double oldNum, double newNum, String oldStr, String newStr ) {
+      return !operand.eval( oldNum, newNum, oldStr, newStr );
+    }
+  }
+}
@@ -0,0 +1,407 @@
+/*******************************************************************************
+ *
+ * Pentaho Data Integration
+ *
+ * Copyright (C) 2002-2012 by Pentaho : http://www.pentaho.com
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+package org.pentaho.di.trans.steps.detectrowchange;
+
+import org.pentaho.di.core.exception.KettleException;
+import org.pentaho.di.i18n.BaseMessages;
+import org.pentaho.di.trans.steps.detectrowchange.ChangeCondition.BoolNode;
+import org.pentaho.di.trans.steps.detectrowchange.ChangeCondition.Node;
+import org.pentaho.di.trans.steps.detectrowchange.ChangeCondition.NumNode;
+import org.pentaho.di.trans.steps.detectrowchange.ChangeCondition.StrNode;
+
+/**
+ * Recursive descent parser for change conditions. The grammar, lowest precedence first:
+ *
+ * <pre>
+ * or         := and ( '||' and )*
+ * and        := not ( '&amp;&amp;' not )*
+ * not        := '!' not | comparison
+ * comparison := sum ( ( '==' | '!=' | '&lt;' | '&lt;=' | '&gt;' | '&gt;=' ) sum )?
+ * sum        := product ( ( '+' | '-' ) product )*
+ * product    := unary ( ( '*' | '/' ) unary )*
+ * unary      := '-' unary | primary
+ * primary    := number [ '%' ] | 'string' | true | false | old | new | function '(' args ')' | '(' or ')'
+ * </pre>
+ *
+ * Functions are abs(number), len(string), prefix(string, number), lower(string), upper(string) and trim(string).
+ * A number followed by '%' is divided by 100, so <code>abs(new - old) / abs(old) &gt; 5%</code> reads naturally.
+ */
+class ChangeConditionParser {
+  private static Class<?> PKG = DetectRowChangeMeta.class; // for i18n purposes, needed by Translator2!! $NON-NLS-1$
+
+  private final String expression;
+
+  private final int operandType;
+
+  private int pos;
+
+  private int tokenStart;
+
+  ChangeConditionParser( String expression, int operandType ) {
+    this.expression = expression;
+    this.operandType = operandType;
+  }
+
+  BoolNode parse() throws KettleException {
+    pos = 0;
+    Node node = parseOr();
+    skipWhitespace();
+    if ( pos < expression.length() ) {
+      throw unexpected();
+    }
+    if ( node.type != ChangeCondition.TYPE_BOOLEAN ) {
+      throw new KettleException( BaseMessages.getString( PKG, "ChangeCondition.Error.NotBoolean", expression ) );
+    }
+    return (BoolNode) node;
+  }
+
+  private Node parseOr() throws KettleException {
+    Node left = parseAnd();
+    while ( accept( "||" ) ) {
+      BoolNode operand = bool( left );
+      left = new ChangeCondition.Or( operand, bool( parseAnd() ) );
+    }
+    return left;
+  }
+
+  private Node parseAnd() throws KettleException {
+    Node left = parseNot();
+    while ( accept( "&&" ) ) {
+      BoolNode operand = bool( left );
+      left = new ChangeCondition.And( operand, bool( parseNot() ) );
+    }
+    return left;
+  }
+
+  private Node parseNot() throws KettleException {
+    if ( peek( "!" ) && !peek( "!=" ) ) {
+      accept( "!" );
+      return new ChangeCondition.Not( bool( parseNot() ) );
+    }
+    return parseComparison();
+  }
+
+  private Node parseComparison() throws KettleException {
+    Node left = parseSum();
+    String operator;
+    if ( accept( "==" ) || accept( "=" ) ) {
+      operator = "==";
+    } else if ( accept( "!=" ) || accept( "<>" ) ) {
+      operator = "!=";
+    } else if ( accept( "<=" ) ) {
+      operator = "<=";
+    } else if ( accept( "<" ) ) {
+      operator = "<";
+    } else if ( accept( ">=" ) ) {
+      operator = ">=";
+    } else if ( accept( ">" ) ) {
+      operator = ">";
+    } else {
+      return left;
+    }
+    int operatorStart = tokenStart;
+    Node right = parseSum();
+    if ( left.type != right.type ) {
+      throw typeMismatch( operatorStart );
+    }
+    if ( left.type == ChangeCondition.TYPE_NUMBER ) {
+      return numberComparison( operator, (NumNode) left, (NumNode) right );
+    }
+    if ( left.type == ChangeCondition.TYPE_STRING ) {
+      return stringComparison( operator, (StrNode) left, (StrNode) right );
+    }
+    if ( "==".equals( operator ) ) {
+      return new ChangeCondition.BoolEq( (BoolNode) left, (BoolNode) right );
+    }
+    if ( "!=".equals( operator ) ) {
+      return new ChangeCondition.BoolNe( (BoolNode) left, (BoolNode) right );
+    }
+    throw typeMismatch( operatorStart );
+  }
+
+  private static BoolNode numberComparison( String operator, NumNode left, NumNode right ) {
+    if ( "==".equals( operator ) ) {
+      return new ChangeCondition.NumEq( left, right );
+    }
+    if ( "!=".equals( operator ) ) {
+      return new ChangeCondition.NumNe( left, right );
+    }
+    if ( "<=".equals( operator ) ) {
+      return new ChangeCondition.NumLe( left, right );
+    }
+    if ( "<".equals( operator ) ) {
+      return new ChangeCondition.NumLt( left, right );
+    }
+    if ( ">=".equals( operator ) ) {
+      return new ChangeCondition.NumGe( left, right );
+    }
+    return new ChangeCondition.NumGt( left, right );
+  }
+
+  private static BoolNode stringComparison( String operator, StrNode left, StrNode right ) {
+    if ( "==".equals( operator ) ) {
+      return new ChangeCondition.StrEq( left, right );
+    }
+    if ( "!=".equals( operator ) ) {
+      return new ChangeCondition.StrNe( left, right );
+    }
+    if ( "<=".equals( operator ) ) {
+      return new ChangeCondition.StrLe( left, right );
+    }
+    if ( "<".equals( operator ) ) {
+      return new ChangeCondition.StrLt( left, right );
+    }
+    if ( ">=".equals( operator ) ) {
+      return new ChangeCondition.StrGe( left, right );
+    }
+    return new ChangeCondition.StrGt( left, right );
+  }
+
+  private Node parseSum() throws KettleException {
+    Node left = parseProduct();
+    while ( true ) {
+      if ( accept( "+" ) ) {
+        int operatorStart = tokenStart;
+        Node right = parseProduct();
+        left = new ChangeCondition.Add( number( left, operatorStart ), number( right, operatorStart ) );
+      } else if ( accept( "-" ) ) {
+        int operatorStart = tokenStart;
+        Node right = parseProduct();
+        left = new ChangeCondition.Subtract( number( left, operatorStart ), number( right, operatorStart ) );
+      } else {
+        return left;
+      }
+    }
+  }
+
+  private Node parseProduct() throws KettleException {
+    Node left = parseUnary();
+    while ( true ) {
+      if ( accept( "*" ) ) {
+        int operatorStart = tokenStart;
+        Node right = parseUnary();
+        left = new ChangeCondition.Multiply( number( left, operatorStart ), number( right, operatorStart ) );
+      } else if ( accept( "/" ) ) {
+        int operatorStart = tokenStart;
+        Node right = parseUnary();
+        left = new ChangeCondition.Divide( number( left, operatorStart ), number( right, operatorStart ) );
+      } else {
+        return left;
+      }
+    }
+  }
+
+  private Node parseUnary() throws KettleException {
+    if ( accept( "-" ) ) {
+      return new ChangeCondition.Negate( number( parseUnary() ) );
+    }
+    return parsePrimary();
+  }
+
+  private Node parsePrimary() throws KettleException {
+    skipWhitespace();
+    tokenStart = pos;
+    if ( pos >= expression.length() ) {
+      throw unexpected();
+    }
+    char c = expression.charAt( pos );
+
+    if ( accept( "(" ) ) {
+      Node node = parseOr();
+      expectToken( ")" );
+      return node;
+    }
+    if ( Character.isDigit( c ) || c == '.' ) {
+      return parseNumber();
+    }
+    if ( c == '\'' ) {
+      return parseString();
+    }
+    if ( Character.isLetter( c ) ) {
+      String name = parseIdentifier();
+      if ( "old".equalsIgnoreCase( name ) ) {
+        return operand( false );
+      }
+      if ( "new".equalsIgnoreCase( name ) ) {
+        return operand( true );
+      }
+      if ( "true".equalsIgnoreCase( name ) ) {
+        return new ChangeCondition.BoolLiteral( true );
+      }
+      if ( "false".equalsIgnoreCase( name ) ) {
+        return new ChangeCondition.BoolLiteral( false );
+      }
+      return parseFunction( name.toLowerCase(), tokenStart );
+    }
+    throw unexpected();
+  }
+
+  private Node operand( boolean current ) {
+    switch ( operandType ) {
+      case ChangeCondition.TYPE_NUMBER:
+        return current ? new ChangeCondition.NewNum() : new ChangeCondition.OldNum();
+      case ChangeCondition.TYPE_BOOLEAN:
+        return current ? new ChangeCondition.NewBool() : new ChangeCondition.OldBool();
+      default:
+        return current ? new ChangeCondition.NewStr() : new ChangeCondition.OldStr();
+    }
+  }
+
+  private Node parseFunction( String name, int nameStart ) throws KettleException {
+    expectToken( "(" );
+    Node node;
+    if ( "abs".equals( name ) ) {
+      node = new ChangeCondition.Abs( number( parseOr() ) );
+    } else if ( "len".equals( name ) ) {
+      node = new ChangeCondition.Length( string( parseOr() ) );
+    } else if ( "prefix".equals( name ) ) {
+      StrNode operand = string( parseOr() );
+      expectToken( "," );
+      node = new ChangeCondition.Prefix( operand, number( parseOr() ) );
+    } else if ( "lower".equals( name ) ) {
+      node = new ChangeCondition.Lower( string( parseOr() ) );
+    } else if ( "upper".equals( name ) ) {
+      node = new ChangeCondition.Upper( string( parseOr() ) );
+    } else if ( "trim".equals( name ) ) {
+      node = new ChangeCondition.Trim( string( parseOr() ) );
+    } else {
+      throw new KettleException( BaseMessages.getString( PKG, "ChangeCondition.Error.UnknownFunction", expression,
+          name, ( nameStart + 1 ) + "" ) );
+    }
+    expectToken( ")" );
+    return node;
+  }
+
+  private Node parseNumber() throws KettleException {
+    int start = pos;
+    while ( pos < expression.length()
+        && ( Character.isDigit( expression.charAt( pos ) ) || expression.charAt( pos ) == '.' ) ) {
+      pos++;
+    }
+    double value;
+    try {
+      value = Double.parseDouble( expression.substring( start, pos ) );
+    } catch ( NumberFormatException e ) {
+      pos = start;
+      throw unexpected();
+    }
+    if ( pos < expression.length() && expression.charAt( pos ) == '%' ) {
+      pos++;
+      value = value / 100;
+    }
+    return new ChangeCondition.NumLiteral( value );
+  }
+
+  private Node parseString() throws KettleException {
+    int start = pos;
+    StringBuilder value = new StringBuilder();
+    pos++;
+    while ( pos < expression.length() ) {
+      char c = expression.charAt( pos++ );
+      if ( c == '\'' ) {
+        if ( pos < expression.length() && expression.charAt( pos ) == '\'' ) {
+          value.append( '\'' );
+          pos++;
+        } else {
+          return new ChangeCondition.StrLiteral( value.toString() );
+        }
+      } else {
+        value.append( c );
+      }
+    }
+    pos = start;
+    throw unexpected();
+  }
+
+  private String parseIdentifier() {
+    int start = pos;
+    while ( pos < expression.length()
+        && ( Character.isLetterOrDigit( expression.charAt( pos ) ) || expression.charAt( pos ) == '_' ) ) {
+      pos++;
+    }
+    return expression.substring( start, pos );
+  }
+
+  private NumNode number( Node node ) throws KettleException {
+    return number( node, tokenStart );
+  }
+
+  private NumNode number( Node node, int position ) throws KettleException {
+    if ( node.type != ChangeCondition.TYPE_NUMBER ) {
+      throw typeMismatch( position );
+    }
+    return (NumNode) node;
+  }
+
+  private StrNode string( Node node ) throws KettleException {
+    if ( node.type != ChangeCondition.TYPE_STRING ) {
+      throw typeMismatch( tokenStart );
+    }
+    return (StrNode) node;
+  }
+
+  private BoolNode bool( Node node ) throws KettleException {
+    if ( node.type != ChangeCondition.TYPE_BOOLEAN ) {
+      throw typeMismatch( tokenStart );
+    }
+    return (BoolNode) node;
+  }
+
+  private void expectToken( String token ) throws KettleException {
+    if ( !accept( token ) ) {
+      skipWhitespace();
+      throw unexpected();
+    }
+  }
+
+  private boolean peek( String token ) {
+    skipWhitespace();
+    return expression.startsWith( token, pos );
+  }
+
+  private boolean accept( String token ) {
+    if ( peek( token ) ) {
+      tokenStart = pos;
+      pos += token.length();
+      return true;
+    }
+    return false;
+  }
+
+  private void skipWhitespace() {
+    while ( pos < expression.length() && Character.isWhitespace( expression.charAt( pos ) ) ) {
+      pos++;
+    }
+  }
+
+  private KettleException unexpected() {
+    String token = pos < expression.length() ? expression.substring( pos, pos + 1 ) : "<end>";
+    return new KettleException( BaseMessages.getString( PKG, "ChangeCondition.Error.UnexpectedToken", expression,
+        token, ( pos + 1 ) + "" ) );
+  }
+
+  private KettleException typeMismatch( int position ) {
+    return new KettleException( BaseMessages.getString( PKG, "ChangeCondition.Error.TypeMismatch", expression,
+        ( position + 1 ) + "" ) );
+  }
+}
@@ -0,0 +1,181 @@
+/*******************************************************************************
+ *
+ * Pentaho Data Integration
+ *
+ * Copyright (C) 2002-2012 by Pentaho : http://www.pentaho.com
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+package org.pentaho.di.trans.steps.detectrowchange;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The tracked values of the last rows seen, kept in a ring buffer of at most <code>maxCapacity</code> rows together
+ * with a hashed multiset per field. Adding a row, evicting the oldest one and looking up a value are all O(1)
+ * (amortized while the buffer grows), and memory is bounded by the maximum capacity.
+ *
+ * Values must already be normalized so that equal values are equal according to {@link Object#equals(Object)}.
+ */
+class ChangeWindow {
+
+  /** initial number of row slots, the window grows from there up to its maximum capacity */
+  static final int INITIAL_CAPACITY = 1024;
+
+  private Object[][] values;
+
+  private long[] times;
+
+  private final int maxCapacity;
+
+  /** time of the newest row added */
+  private long newestTime = Long.MIN_VALUE;
+
+  /** per field: value -> number of rows in the window holding it */
+  private final List<Map<Object, int[]>> counts;
+
+  private final int numFields;
+
+  /** slot of the oldest row */
+  private int head;
+
+  private int size;
+
+  /**
+   * Creates a window of at most <code>maxCapacity</code> rows. Memory is only allocated as rows arrive, so a large
+   * maximum costs nothing until the window fills up.
+   */
+  ChangeWindow( int maxCapacity, int numFields ) {
+    this( Math.min( INITIAL_CAPACITY, maxCapacity ), maxCapacity, numFields );
+  }
+
+  /**
+   * Creates a window that starts with room for <code>initialCapacity</code> rows and doubles as needed up to
+   * <code>maxCapacity</code> rows. The slot of a row is allocated when it is first used.
+   */
+  ChangeWindow( int initialCapacity, int maxCapacity, int numFields ) {
+    this.values = new Object[initialCapacity][];
+    this.times = new long[initialCapacity];
+    this.maxCapacity = maxCapacity;
+    this.numFields = numFields;
+    this.counts = new ArrayList<Map<Object, int[]>>( numFields );
+    for ( int i = 0; i < numFields; i++ ) {
+      counts.add( new HashMap<Object, int[]>() );
+    }
+  }
+
+  /**
+   * @return true if a row in the window holds this value for the given field
+   */
+  boolean contains( int field, Object value ) {
+    return counts.get( field ).containsKey( value );
+  }
+
+  /**
+   * @return the number of distinct values of the given field in the window
+   */
+  int getDistinctCount( int field ) {
+    return counts.get( field ).size();
+  }
+
+  /**
+   * @return the number of rows in the window
+   */
+  int size() {
+    return size;
+  }
+
+  /**
+   * Adds the values of a row, growing the window or, once it reached its maximum capacity, evicting the oldest row
+   * first. The values are copied into the window, so the array can be reused by the caller.
+   *
+   * Eviction by time stops at the first row that is new enough, so the times in the window must not decrease: a row
+   * with an older time than the newest row is stored with the time of the newest row.
+   *
+   * @return true if the oldest row was evicted to make room
+   */
+  boolean add( Object[] rowValues, long time ) {
+    boolean evicted = false;
+    if ( size == values.length ) {
+      if ( values.length < maxCapacity ) {
+        grow();
+      } else {
+        evictOldest();
+        evicted = true;
+      }
+    }
+    int slot = ( head + size ) % values.length;
+    if ( values[slot] == null ) {
+      values[slot] = new Object[numFields];
+    }
+    for ( int i = 0; i < numFields; i++ ) {
+      values[slot][i] = rowValues[i];
+      Map<Object, int[]> fieldCounts = counts.get( i );
+      int[] count = fieldCounts.get( rowValues[i] );
+      if ( count == null ) {
+        fieldCounts.put( rowValues[i], new int[] { 1 } );
+      } else {
+        count[0]++;
+      }
+    }
+    if ( time > newestTime ) {
+      newestTime = time;
+    }
+    times[slot] = newestTime;
+    size++;
+    return evicted;
+  }
+
+  /**
+   * Evicts all rows added before the given time.
+   */
+  void evictOlderThan( long time ) {
+    while ( size > 0 && times[head] < time ) {
+      evictOldest();
+    }
+  }
+
+  private void grow() {
+    int capacity = (int) Math.min( 2L * values.length, maxCapacity );
+    Object[][] newValues = new Object[capacity][];
+    long[] newTimes = new long[capacity];
+    for ( int k = 0; k < size; k++ ) {
+      int slot = ( head + k ) % values.length;
+      newValues[k] = values[slot];
+      newTimes[k] = times[slot];
+    }
+    values = newValues;
+    times = newTimes;
+    head = 0;
+  }
+
+  private void evictOldest() {
+    for ( int i = 0; i < numFields; i++ ) {
+      Map<Object, int[]> fieldCounts = counts.get( i );
+      int[] count = fieldCounts.get( values[head][i] );
+      if ( --count[0] == 0 ) {
+        fieldCounts.remove( values[head][i] );
+      }
+      values[head][i] = null;
+    }
+    head = ( head + 1 ) % values.length;
+    size--;
+  }
+}
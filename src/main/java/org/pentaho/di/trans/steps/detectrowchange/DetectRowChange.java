@@ -22,8 +22,13 @@
 
 package org.pentaho.di.trans.steps.detectrowchange;
 
+import java.math.BigDecimal;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.Date;
+import java.util.Locale;
 
+import org.pentaho.di.core.Const;
 import org.pentaho.di.core.exception.KettleException;
 import org.pentaho.di.core.row.RowDataUtil;
 import org.pentaho.di.core.row.RowMetaInterface;
@@ -47,20 +52,81 @@ import org.pentaho.di.trans.step.StepMetaInterface;
 public class DetectRowChange extends BaseStep implements StepInterface {
   private static Class<?> PKG = DetectRowChangeMeta.class; // for i18n purposes, needed by Translator2!! $NON-NLS-1$
 
+  /** number of rows between two reorderings of the comparisons in adaptive mode */
+  private static final int CALIBRATION_INTERVAL = 1000;
+
   private DetectRowChangeMeta meta;
 
   private RowMetaInterface outputRowMeta;
 
   private int[] valueIndex;
 
-  private Object[] trackedValues;
+  /** number of "_last" values added to the output row */
+  private int numTrackedValues;
+
+  /** the value of each tracked field in the last retained row, in configured order */
+  private Object[] lastValues;
 
-  private Object[] lastRow;
+  /** true for fields holding mutable values (binary data and dates) that need a copy when retained */
+  private boolean[] copyOnRetain;
 
   private String[] fieldNames;
 
+  /** compiled change condition per field, null where any difference counts as a change */
+  private ChangeCondition[] changeConditions;
+
   private long numRowsSinceLastChange = 0;
 
+  /** value metadata of each tracked field, in configured order */
+  private ValueMetaInterface[] valueMetas;
+
+  /** number of "_changed" flags in the output row, 0 when flags are not included */
+  private int numChangeFlags;
+
+  /** field indexes in the order they are compared, reordered periodically in adaptive mode */
+  private int[] evalOrder;
+
+  private boolean adaptiveOrder;
+
+  /** relative cost of comparing each field, weighs the change frequency in adaptive mode */
+  private int[] compareCost;
+
+  /** per-field comparisons and changes seen since the last calibration, decayed at each one */
+  private long[] numCompared;
+
+  private long[] numChanged;
+
+  private int rowsUntilCalibration;
+
+  /** the previous rows compared against in windowed mode, null otherwise */
+  private ChangeWindow window;
+
+  private int windowMode;
+
+  /** maximum age of the rows in the window in milliseconds, 0 = no time limit */
+  private long windowTimeMillis;
+
+  /** index of the date field giving the row time, -1 to use the time the row was read */
+  private int windowTimeIndex;
+
+  /** newest row time seen so far, Long.MIN_VALUE before the first row with a time */
+  private long lastWindowTime;
+
+  /** true if the window is limited by time only and grows up to a hard cap */
+  private boolean timeOnlyWindow;
+
+  /** true once the hard cap cut a time only window short, so the warning is only logged once */
+  private boolean windowTruncated;
+
+  /** scratch array of normalized window values for the current row */
+  private Object[] windowValues;
+
+  /** per-field distinct value counts in the window after the previous row */
+  private int[] lastDistinctCounts;
+
+  /** per-field changed flags for the current row in windowed mode */
+  private boolean[] windowChanged;
+
   public DetectRowChange( StepMeta stepMeta, StepDataInterface stepDataInterface, int copyNr, TransMeta transMeta,
       Trans trans ) {
     super( stepMeta, stepDataInterface, copyNr, transMeta, trans );
@@ -80,7 +146,16 @@ public class DetectRowChange extends BaseStep implements StepInterface {
       outputRowMeta = getInputRowMeta().clone();
       fieldNames = meta.getFieldNames();
       valueIndex = new int[fieldNames.length];
-      lastRow = r.clone();
+      valueMetas = new ValueMetaInterface[fieldNames.length];
+      changeConditions = new ChangeCondition[fieldNames.length];
+      lastValues = new Object[fieldNames.length];
+      copyOnRetain = new boolean[fieldNames.length];
+      evalOrder = new int[fieldNames.length];
+      compareCost = new int[fieldNames.length];
+      numCompared = new long[fieldNames.length];
+      numChanged = new long[fieldNames.length];
+      adaptiveOrder = meta.isAdaptiveOrder();
+      numChangeFlags = meta.isIncludeChangeFlags() ? fieldNames.length : 0;
       ArrayList<ValueMetaInterface> trackedValueTypes = new ArrayList<ValueMetaInterface>( meta.findNumTrackedValues() );
       for ( int i = 0; i < fieldNames.length; i++ ) {
 
@@ -96,9 +171,25 @@ public class DetectRowChange extends BaseStep implements StepInterface {
           throw new KettleException( BaseMessages.getString( PKG, "DetectRowChange.Error.FieldTypeNotFound",
               fieldNames[i] ) );
         }
+        valueMetas[i] = valueMeta;
+        evalOrder[i] = i;
+
+        // Keep only the tracked value, not the whole row
+        copyOnRetain[i] = valueMeta.isBinary() || valueMeta.isDate() || valueMeta.isStorageBinaryString();
+        lastValues[i] = retainValue( i, r[valueIndex[i]] );
+
+        // Compile the change condition once, against the type of this field
+        String condition = meta.getChangeCondition()[i];
+        if ( !Const.isEmpty( condition ) ) {
+          changeConditions[i] = ChangeCondition.compile( condition, valueMeta );
+        }
+
+        compareCost[i] = getCompareCost( valueMeta, changeConditions[i] != null );
 
         // Add changed flag for this field
-        outputRowMeta.addValueMeta( new ValueMetaBoolean( valueMeta.getName() + "_changed" ) );
+        if ( numChangeFlags > 0 ) {
+          outputRowMeta.addValueMeta( new ValueMetaBoolean( valueMeta.getName() + "_changed" ) );
+        }
 
         if ( meta.getIncludeOldValue()[i] ) {
           ValueMetaInterface lastValue = ValueMetaFactory.cloneValueMeta( valueMeta );
@@ -115,49 +206,329 @@ public class DetectRowChange extends BaseStep implements StepInterface {
         outputRowMeta.addValueMeta( trackedValueType );
       }
 
-      trackedValues = new Object[meta.findNumTrackedValues()];
+      numTrackedValues = meta.findNumTrackedValues();
+
+      // Start with the cheapest comparisons first, the statistics take over from there
+      if ( adaptiveOrder ) {
+        calibrateOrder();
+      }
+
+      windowMode = meta.getWindowMode();
+      if ( windowMode != DetectRowChangeMeta.WINDOW_MODE_NONE ) {
+        initWindow( r );
+      }
 
       numRowsSinceLastChange = 0;
       first = false;
       return true;
     }
 
-    // Set up per-row local variables
-    boolean changed = false;
-    int numInFields = getInputRowMeta().size();
-    int newRowLength = numInFields + fieldNames.length + 1;
-    Object[] newRow = RowDataUtil.createResizedCopy( r, newRowLength );
-    int j = 0;
     numRowsSinceLastChange++;
 
-    // Update boolean changed flags (and store off last values as needed)
+    if ( window != null ) {
+      processWindowedRow( r );
+    } else {
+      processLastRow( r );
+    }
+
+    if ( checkFeedback( getLinesRead() ) ) {
+      if ( log.isBasic() )
+        logBasic( BaseMessages.getString( PKG, "DetectRowChange.Log.LineNumber" ) + getLinesRead() );
+    }
+
+    return true;
+  }
+
+  /**
+   * Compares the row with the last changed row and outputs it if any tracked field changed.
+   */
+  private void processLastRow( Object[] r ) throws KettleException {
+    // Compare fields in evaluation order until the first one that changed
+    int changedAt = -1;
+    for ( int k = 0; k < evalOrder.length; k++ ) {
+      if ( isFieldChanged( evalOrder[k], r ) ) {
+        changedAt = k;
+        break;
+      }
+    }
+
+    if ( adaptiveOrder ) {
+      updateStatistics( changedAt );
+    }
+
+    if ( changedAt >= 0 ) {
+      // Only emitted rows need the remaining changed flags and old values, so gather them here
+      int numInFields = getInputRowMeta().size();
+      Object[] newRow = createOutputRow( r );
+      if ( numChangeFlags > 0 ) {
+        for ( int k = 0; k < evalOrder.length; k++ ) {
+          int i = evalOrder[k];
+          if ( k < changedAt ) {
+            newRow[numInFields + i] = Boolean.FALSE;
+          } else if ( k == changedAt ) {
+            newRow[numInFields + i] = Boolean.TRUE;
+          } else {
+            newRow[numInFields + i] = isFieldChanged( i, r ) ? Boolean.TRUE : Boolean.FALSE;
+          }
+        }
+      }
+
+      // Retain the new values. A field known to be equal keeps its current value, unless that value was just handed
+      // out as a "_last" value or a change condition may have let a different value through.
+      for ( int k = 0; k < evalOrder.length; k++ ) {
+        int i = evalOrder[k];
+        boolean unchanged = k < changedAt || ( numChangeFlags > 0 && Boolean.FALSE == newRow[numInFields + i] );
+        if ( !unchanged || changeConditions[i] != null || meta.getIncludeOldValue()[i] ) {
+          lastValues[i] = retainValue( i, r[valueIndex[i]] );
+        }
+      }
+
+      putRow( outputRowMeta, newRow ); // copy row to possible alternate rowset(s).
+      numRowsSinceLastChange = 0;
+    }
+  }
+
+  /**
+   * Compares the row with the window of previous rows and outputs it if any tracked field changed. Every row enters the
+   * window, evicting the oldest one when the window is full or the oldest ones when they are too old. A window limited
+   * by time only grows up to its maximum size instead.
+   */
+  private void processWindowedRow( Object[] r ) throws KettleException {
+    long time = 0;
+    if ( windowTimeMillis > 0 ) {
+      time = getWindowTime( r );
+      if ( time != Long.MIN_VALUE ) {
+        window.evictOlderThan( time - windowTimeMillis );
+      }
+    }
+
     for ( int i = 0; i < fieldNames.length; i++ ) {
-      if ( 0 != getInputRowMeta().getValueMeta( valueIndex[i] ).compare( lastRow[valueIndex[i]], r[valueIndex[i]] ) ) {
-        // Field changed!
-        changed = true;
-        newRow[numInFields + i] = Boolean.TRUE;
-      } else {
-        newRow[numInFields + i] = Boolean.FALSE;
+      windowValues[i] = toWindowValue( i, r[valueIndex[i]] );
+      if ( windowMode == DetectRowChangeMeta.WINDOW_MODE_ANY_VALUE ) {
+        windowChanged[i] = !window.contains( i, windowValues[i] );
       }
-      if ( meta.getIncludeOldValue()[i] ) {
-        trackedValues[j++] = lastRow[valueIndex[i]];
+    }
+    if ( window.add( windowValues, time ) && timeOnlyWindow && !windowTruncated ) {
+      windowTruncated = true;
+      logBasic( BaseMessages.getString( PKG, "DetectRowChange.Log.WindowTruncated", Integer.toString( window.size() ),
+          Integer.toString( meta.getWindowTime() ) ) );
+    }
+
+    boolean changed = false;
+    for ( int i = 0; i < fieldNames.length; i++ ) {
+      if ( windowMode == DetectRowChangeMeta.WINDOW_MODE_DISTINCT_COUNT ) {
+        int distinctCount = window.getDistinctCount( i );
+        windowChanged[i] = distinctCount != lastDistinctCounts[i];
+        lastDistinctCounts[i] = distinctCount;
       }
+      changed |= windowChanged[i];
     }
 
     if ( changed ) {
-      // Set num rows since last change, then add the tracked "last" values
-      newRow[newRowLength - 1] = numRowsSinceLastChange;
-      Object[] finalRow = RowDataUtil.addRowData( newRow, newRowLength, trackedValues );
-      putRow( outputRowMeta, finalRow ); // copy row to possible alternate rowset(s).
-      lastRow = r;
+      int numInFields = getInputRowMeta().size();
+      Object[] newRow = createOutputRow( r );
+      for ( int i = 0; i < numChangeFlags; i++ ) {
+        newRow[numInFields + i] = windowChanged[i] ? Boolean.TRUE : Boolean.FALSE;
+      }
+      for ( int i = 0; i < fieldNames.length; i++ ) {
+        lastValues[i] = retainValue( i, r[valueIndex[i]] );
+      }
+      putRow( outputRowMeta, newRow ); // copy row to possible alternate rowset(s).
       numRowsSinceLastChange = 0;
     }
+  }
 
-    if ( checkFeedback( getLinesRead() ) ) {
-      if ( log.isBasic() )
-        logBasic( BaseMessages.getString( PKG, "DetectRowChange.Log.LineNumber" ) + getLinesRead() );
+  /**
+   * Copies the input row into a new output row and sets the number of rows since the last change and the tracked
+   * "_last" values. The changed flags are left to the caller.
+   */
+  private Object[] createOutputRow( Object[] r ) {
+    int newRowLength = getInputRowMeta().size() + numChangeFlags + 1;
+    Object[] newRow = RowDataUtil.createResizedCopy( r, newRowLength + numTrackedValues );
+    newRow[newRowLength - 1] = numRowsSinceLastChange;
+    int j = newRowLength;
+    for ( int i = 0; i < fieldNames.length; i++ ) {
+      if ( meta.getIncludeOldValue()[i] ) {
+        newRow[j++] = lastValues[i];
+      }
+    }
+    return newRow;
+  }
+
+  private void initWindow( Object[] r ) throws KettleException {
+    if ( meta.getWindowSize() <= 0 && meta.getWindowTime() <= 0 ) {
+      throw new KettleException( BaseMessages.getString( PKG, "DetectRowChange.Error.WindowSizeMissing" ) );
+    }
+    windowTimeMillis = meta.getWindowTime() * 1000L;
+    windowTimeIndex = -1;
+    if ( !Const.isEmpty( meta.getWindowTimeField() ) ) {
+      windowTimeIndex = getInputRowMeta().indexOfValue( meta.getWindowTimeField() );
+      if ( windowTimeIndex == -1 ) {
+        throw new KettleException( BaseMessages.getString( PKG, "DetectRowChange.Error.WindowTimeFieldNotFound", meta
+            .getWindowTimeField() ) );
+      }
     }
+    lastWindowTime = Long.MIN_VALUE;
 
-    return true;
+    timeOnlyWindow = meta.getWindowSize() <= 0;
+    if ( timeOnlyWindow ) {
+      int maxSize = meta.getWindowMaxSize() > 0 ? meta.getWindowMaxSize() : DetectRowChangeMeta.DEFAULT_WINDOW_MAX_SIZE;
+      window = new ChangeWindow( maxSize, fieldNames.length );
+    } else {
+      window = new ChangeWindow( meta.getWindowSize(), fieldNames.length );
+    }
+    windowValues = new Object[fieldNames.length];
+    windowChanged = new boolean[fieldNames.length];
+    lastDistinctCounts = new int[fieldNames.length];
+
+    // The first row seeds the window
+    for ( int i = 0; i < fieldNames.length; i++ ) {
+      windowValues[i] = toWindowValue( i, r[valueIndex[i]] );
+    }
+    window.add( windowValues, windowTimeMillis > 0 ? getWindowTime( r ) : 0 );
+    for ( int i = 0; i < fieldNames.length; i++ ) {
+      lastDistinctCounts[i] = window.getDistinctCount( i );
+    }
+  }
+
+  /**
+   * Returns the window time of a row: the newest time seen so far, from the window time field or the time the row was
+   * read. Rows whose time goes backwards (out of order rows, or a clock set back) and rows without a time get the
+   * newest time, so the times in the window never decrease and a late row is evicted together with the rows around
+   * it instead of lingering behind them.
+   */
+  private long getWindowTime( Object[] r ) throws KettleException {
+    long time;
+    if ( windowTimeIndex < 0 ) {
+      time = System.currentTimeMillis();
+    } else {
+      Date date = getInputRowMeta().getValueMeta( windowTimeIndex ).getDate( r[windowTimeIndex] );
+      time = date != null ? date.getTime() : Long.MIN_VALUE;
+    }
+    if ( time > lastWindowTime ) {
+      lastWindowTime = time;
+    }
+    return lastWindowTime;
+  }
+
+  /**
+   * Converts a value to a form that can be hashed and compared with equals() in the window: native storage, case
+   * folded for case insensitive fields, numbers without trailing zeros and binaries wrapped by content.
+   */
+  private Object toWindowValue( int i, Object value ) throws KettleException {
+    ValueMetaInterface valueMeta = valueMetas[i];
+    if ( valueMeta.isNull( value ) ) {
+      return null;
+    }
+    Object data = valueMeta.convertToNormalStorageType( value );
+    if ( data instanceof String ) {
+      return meta.getCaseSensitive()[i] ? data : ( (String) data ).toUpperCase( Locale.ROOT );
+    }
+    if ( data instanceof BigDecimal ) {
+      return ( (BigDecimal) data ).stripTrailingZeros();
+    }
+    if ( data instanceof byte[] ) {
+      return ByteBuffer.wrap( ( (byte[]) data ).clone() );
+    }
+    return retainValue( i, data );
+  }
+
+  private boolean isFieldChanged( int i, Object[] r ) throws KettleException {
+    if ( changeConditions[i] != null ) {
+      return changeConditions[i].isChanged( lastValues[i], r[valueIndex[i]] );
+    }
+    return 0 != valueMetas[i].compare( lastValues[i], r[valueIndex[i]] );
+  }
+
+  /**
+   * Returns the value to keep for a tracked field. Binary data and dates are mutable and may be changed by later steps,
+   * so those are copied, everything else is immutable and kept by reference.
+   */
+  private Object retainValue( int i, Object value ) {
+    if ( value == null || !copyOnRetain[i] ) {
+      return value;
+    }
+    if ( value instanceof byte[] ) {
+      return ( (byte[]) value ).clone();
+    }
+    if ( value instanceof Date ) {
+      return ( (Date) value ).clone();
+    }
+    return value;
+  }
+
+  /**
+   * Records which fields were compared for the last row and which one (if any) changed, and reorders the fields once
+   * enough rows have been seen.
+   */
+  private void updateStatistics( int changedAt ) {
+    int numEvaluated = changedAt >= 0 ? changedAt + 1 : evalOrder.length;
+    for ( int k = 0; k < numEvaluated; k++ ) {
+      numCompared[evalOrder[k]]++;
+    }
+    if ( changedAt >= 0 ) {
+      numChanged[evalOrder[changedAt]]++;
+    }
+    if ( --rowsUntilCalibration <= 0 ) {
+      calibrateOrder();
+    }
+  }
+
+  /**
+   * Sorts the fields by estimated change probability per unit of comparison cost, highest first, so the comparison
+   * most likely to end the search cheaply is tried first. Counts are halved afterwards so the order follows drift in
+   * the data.
+   */
+  private void calibrateOrder() {
+    double[] score = new double[evalOrder.length];
+    for ( int i = 0; i < evalOrder.length; i++ ) {
+      // Smoothed so that fields that are rarely reached still get a fair estimate
+      score[i] = ( numChanged[i] + 1.0 ) / ( numCompared[i] + 2.0 ) / compareCost[i];
+      numChanged[i] /= 2;
+      numCompared[i] /= 2;
+    }
+
+    // Insertion sort, the number of tracked fields is small and the order rarely changes much
+    for ( int k = 1; k < evalOrder.length; k++ ) {
+      int field = evalOrder[k];
+      int m = k - 1;
+      while ( m >= 0 && score[evalOrder[m]] < score[field] ) {
+        evalOrder[m + 1] = evalOrder[m];
+        m--;
+      }
+      evalOrder[m + 1] = field;
+    }
+    rowsUntilCalibration = CALIBRATION_INTERVAL;
+  }
+
+  /**
+   * Rough relative cost of comparing two values of the given type.
+   */
+  static int getCompareCost( ValueMetaInterface valueMeta, boolean hasCondition ) {
+    int cost;
+    switch ( valueMeta.getType() ) {
+      case ValueMetaInterface.TYPE_BOOLEAN:
+      case ValueMetaInterface.TYPE_INTEGER:
+      case ValueMetaInterface.TYPE_NUMBER:
+      case ValueMetaInterface.TYPE_DATE:
+        cost = 1;
+        break;
+      case ValueMetaInterface.TYPE_BIGNUMBER:
+        cost = 2;
+        break;
+      case ValueMetaInterface.TYPE_STRING:
+        cost = 3;
+        break;
+      default:
+        cost = 4;
+        break;
+    }
+    if ( valueMeta.isStorageBinaryString() ) {
+      cost += 2;
+    }
+    if ( hasCondition ) {
+      cost += 2;
+    }
+    return cost;
   }
 }
@@ -33,6 +33,7 @@ import org.pentaho.di.core.exception.KettleException;
 import org.pentaho.di.core.exception.KettleStepException;
 import org.pentaho.di.core.exception.KettleXMLException;
 import org.pentaho.di.core.row.RowMetaInterface;
+import org.pentaho.di.core.row.ValueMetaInterface;
 import org.pentaho.di.core.variables.VariableSpace;
 import org.pentaho.di.core.xml.XMLHandler;
 import org.pentaho.di.i18n.BaseMessages;
@@ -57,6 +58,25 @@ import org.w3c.dom.Node;
 public class DetectRowChangeMeta extends BaseStepMeta implements StepMetaInterface {
   private static Class<?> PKG = DetectRowChangeMeta.class; // for i18n purposes, needed by Translator2!! $NON-NLS-1$
 
+  /** compare with the last emitted row only */
+  public static final int WINDOW_MODE_NONE = 0;
+
+  /** changed if the value is not found in any row of the window */
+  public static final int WINDOW_MODE_ANY_VALUE = 1;
+
+  /** changed if the number of distinct values in the window changed */
+  public static final int WINDOW_MODE_DISTINCT_COUNT = 2;
+
+  /** default hard cap on the number of rows in a window limited by time only */
+  public static final int DEFAULT_WINDOW_MAX_SIZE = 100000;
+
+  public static final String[] windowModeCodes = { "none", "any_value", "distinct_count" };
+
+  public static final String[] windowModeDescriptions = {
+    BaseMessages.getString( PKG, "DetectRowChangeMeta.WindowMode.None" ),
+    BaseMessages.getString( PKG, "DetectRowChangeMeta.WindowMode.AnyValue" ),
+    BaseMessages.getString( PKG, "DetectRowChangeMeta.WindowMode.DistinctCount" ) };
+
   /** order by which fields? */
   private String fieldNames[];
 
@@ -65,6 +85,30 @@ public class DetectRowChangeMeta extends BaseStepMeta implements StepMetaInterfa
 
   /** false : don't add oldValue field, true=add oldValue field */
   private boolean includeOldValue[];
+
+  /** optional expression over old and new deciding whether the field changed, empty = any difference */
+  private String changeCondition[];
+
+  /** true : add a "_changed" flag per field, false=only output the changed rows */
+  private boolean includeChangeFlags;
+
+  /** true : reorder the comparisons by observed change frequency and cost */
+  private boolean adaptiveOrder;
+
+  /** how rows are compared with the window of previous rows, one of the WINDOW_MODE_ constants */
+  private int windowMode;
+
+  /** maximum number of previous rows in the window, 0 = limited by time only */
+  private int windowSize;
+
+  /** maximum age of the rows in the window in seconds, 0 = no time limit */
+  private int windowTime;
+
+  /** hard cap on the number of rows in a window limited by time only */
+  private int windowMaxSize;
+
+  /** date field giving the time of each row, empty = the time the row was read */
+  private String windowTimeField;
   
   private long numRowsSinceLastChange = 0;
 
@@ -76,6 +120,7 @@ public class DetectRowChangeMeta extends BaseStepMeta implements StepMetaInterfa
     fieldNames = new String[nrfields]; // order in which to detect changes
     caseSensitive = new boolean[nrfields];
     includeOldValue = new boolean[nrfields];
+    changeCondition = new String[nrfields];
   }
 
   @Override
@@ -89,6 +134,7 @@ public class DetectRowChangeMeta extends BaseStepMeta implements StepMetaInterfa
       retval.fieldNames[i] = fieldNames[i];
       retval.caseSensitive[i] = caseSensitive[i];
       retval.includeOldValue[i] = includeOldValue[i];
+      retval.changeCondition[i] = changeCondition[i];
     }
     return retval;
   }
@@ -103,9 +149,17 @@ public class DetectRowChangeMeta extends BaseStepMeta implements StepMetaInterfa
       retval.append( "        " ).append( XMLHandler.addTagValue( "name", fieldNames[i] ) );
       retval.append( "        " ).append( XMLHandler.addTagValue( "case_sensitive", caseSensitive[i] ) );
       retval.append( "        " ).append( XMLHandler.addTagValue( "include_old_value", includeOldValue[i] ) );
+      retval.append( "        " ).append( XMLHandler.addTagValue( "change_condition", changeCondition[i] ) );
       retval.append( "      </field>" ).append( Const.CR );
     }
     retval.append( "    </fields>" ).append( Const.CR );
+    retval.append( "    " ).append( XMLHandler.addTagValue( "include_change_flags", includeChangeFlags ) );
+    retval.append( "    " ).append( XMLHandler.addTagValue( "adaptive_order", adaptiveOrder ) );
+    retval.append( "    " ).append( XMLHandler.addTagValue( "window_mode", getWindowModeCode( windowMode ) ) );
+    retval.append( "    " ).append( XMLHandler.addTagValue( "window_size", windowSize ) );
+    retval.append( "    " ).append( XMLHandler.addTagValue( "window_time", windowTime ) );
+    retval.append( "    " ).append( XMLHandler.addTagValue( "window_max_size", windowMaxSize ) );
+    retval.append( "    " ).append( XMLHandler.addTagValue( "window_time_field", windowTimeField ) );
 
     return retval.toString();
   }
@@ -130,7 +184,17 @@ public class DetectRowChangeMeta extends BaseStepMeta implements StepMetaInterfa
         caseSensitive[i] = Const.isEmpty( sens ) || "Y".equalsIgnoreCase( sens );
         String keepOld = XMLHandler.getTagValue( fnode, "include_old_value" );
         includeOldValue[i] = Const.isEmpty( keepOld ) || "Y".equalsIgnoreCase( keepOld );
+        changeCondition[i] = XMLHandler.getTagValue( fnode, "change_condition" );
       }
+
+      String flags = XMLHandler.getTagValue( stepnode, "include_change_flags" );
+      includeChangeFlags = Const.isEmpty( flags ) || "Y".equalsIgnoreCase( flags );
+      adaptiveOrder = "Y".equalsIgnoreCase( XMLHandler.getTagValue( stepnode, "adaptive_order" ) );
+      windowMode = getWindowModeByCode( XMLHandler.getTagValue( stepnode, "window_mode" ) );
+      windowSize = Const.toInt( XMLHandler.getTagValue( stepnode, "window_size" ), 0 );
+      windowTime = Const.toInt( XMLHandler.getTagValue( stepnode, "window_time" ), 0 );
+      windowMaxSize = Const.toInt( XMLHandler.getTagValue( stepnode, "window_max_size" ), DEFAULT_WINDOW_MAX_SIZE );
+      windowTimeField = XMLHandler.getTagValue( stepnode, "window_time_field" );
     } catch ( Exception e ) {
       throw new KettleXMLException( "Unable to load step info from XML", e );
     }
@@ -146,17 +210,67 @@ public class DetectRowChangeMeta extends BaseStepMeta implements StepMetaInterfa
       fieldNames[i] = "field" + i;
       caseSensitive[i] = true;
       includeOldValue[i] = false;
+      changeCondition[i] = null;
     }
+    includeChangeFlags = true;
+    adaptiveOrder = false;
+    windowMode = WINDOW_MODE_NONE;
+    windowSize = 0;
+    windowTime = 0;
+    windowMaxSize = DEFAULT_WINDOW_MAX_SIZE;
+    windowTimeField = null;
   }
 
   @Override
   public void readRep( Repository rep, IMetaStore metaStore, ObjectId id_step, List<DatabaseMeta> databases )
     throws KettleException {
+    try {
+      int nrfields = rep.countNrStepAttributes( id_step, "field_name" );
+
+      allocate( nrfields );
+
+      for ( int i = 0; i < nrfields; i++ ) {
+        fieldNames[i] = rep.getStepAttributeString( id_step, i, "field_name" );
+        caseSensitive[i] = rep.getStepAttributeBoolean( id_step, i, "case_sensitive", true );
+        includeOldValue[i] = rep.getStepAttributeBoolean( id_step, i, "include_old_value", true );
+        changeCondition[i] = rep.getStepAttributeString( id_step, i, "change_condition" );
+      }
+
+      includeChangeFlags = rep.getStepAttributeBoolean( id_step, 0, "include_change_flags", true );
+      adaptiveOrder = rep.getStepAttributeBoolean( id_step, "adaptive_order" );
+      windowMode = getWindowModeByCode( rep.getStepAttributeString( id_step, "window_mode" ) );
+      windowSize = (int) rep.getStepAttributeInteger( id_step, "window_size" );
+      windowTime = (int) rep.getStepAttributeInteger( id_step, "window_time" );
+      windowMaxSize = (int) rep.getStepAttributeInteger( id_step, "window_max_size" );
+      if ( windowMaxSize <= 0 ) {
+        windowMaxSize = DEFAULT_WINDOW_MAX_SIZE;
+      }
+      windowTimeField = rep.getStepAttributeString( id_step, "window_time_field" );
+    } catch ( Exception e ) {
+      throw new KettleException( "Unexpected error reading step information from the repository", e );
+    }
   }
 
   @Override
   public void saveRep( Repository rep, IMetaStore metaStore, ObjectId id_transformation, ObjectId id_step )
     throws KettleException {
+    try {
+      for ( int i = 0; i < fieldNames.length; i++ ) {
+        rep.saveStepAttribute( id_transformation, id_step, i, "field_name", fieldNames[i] );
+        rep.saveStepAttribute( id_transformation, id_step, i, "case_sensitive", caseSensitive[i] );
+        rep.saveStepAttribute( id_transformation, id_step, i, "include_old_value", includeOldValue[i] );
+        rep.saveStepAttribute( id_transformation, id_step, i, "change_condition", changeCondition[i] );
+      }
+      rep.saveStepAttribute( id_transformation, id_step, "include_change_flags", includeChangeFlags );
+      rep.saveStepAttribute( id_transformation, id_step, "adaptive_order", adaptiveOrder );
+      rep.saveStepAttribute( id_transformation, id_step, "window_mode", getWindowModeCode( windowMode ) );
+      rep.saveStepAttribute( id_transformation, id_step, "window_size", windowSize );
+      rep.saveStepAttribute( id_transformation, id_step, "window_time", windowTime );
+      rep.saveStepAttribute( id_transformation, id_step, "window_max_size", windowMaxSize );
+      rep.saveStepAttribute( id_transformation, id_step, "window_time_field", windowTimeField );
+    } catch ( Exception e ) {
+      throw new KettleException( "Unable to save step information to the repository for id_step=" + id_step, e );
+    }
   }
 
   @Override
@@ -194,6 +308,53 @@ public class DetectRowChangeMeta extends BaseStepMeta implements StepMetaInterfa
               "DetectRowChangeMeta.CheckResult.NoInputReceivedFromOtherSteps" ), stepMeta );
       remarks.add( cr );
     }
+
+    if ( windowMode != WINDOW_MODE_NONE ) {
+      if ( windowSize <= 0 && windowTime <= 0 ) {
+        cr =
+            new CheckResult( CheckResultInterface.TYPE_RESULT_ERROR, BaseMessages.getString( PKG,
+                "DetectRowChangeMeta.CheckResult.WindowSizeMissing" ), stepMeta );
+        remarks.add( cr );
+      }
+      if ( !Const.isEmpty( windowTimeField ) && prev != null && prev.searchValueMeta( windowTimeField ) == null ) {
+        cr =
+            new CheckResult( CheckResultInterface.TYPE_RESULT_ERROR, BaseMessages.getString( PKG,
+                "DetectRowChangeMeta.CheckResult.WindowTimeFieldNotFound", windowTimeField ), stepMeta );
+        remarks.add( cr );
+      }
+      if ( adaptiveOrder || hasChangeConditions() ) {
+        cr =
+            new CheckResult( CheckResultInterface.TYPE_RESULT_WARNING, BaseMessages.getString( PKG,
+                "DetectRowChangeMeta.CheckResult.WindowIgnoresOptions" ), stepMeta );
+        remarks.add( cr );
+      }
+    }
+
+    // Compile the change conditions against the incoming field types
+    if ( prev != null ) {
+      for ( int i = 0; i < fieldNames.length; i++ ) {
+        if ( Const.isEmpty( changeCondition[i] ) ) {
+          continue;
+        }
+        ValueMetaInterface valueMeta = prev.searchValueMeta( fieldNames[i] );
+        if ( valueMeta == null ) {
+          continue;
+        }
+        try {
+          ChangeCondition.compile( changeCondition[i], valueMeta );
+          if ( !ChangeCondition.isExact( valueMeta ) ) {
+            cr =
+                new CheckResult( CheckResultInterface.TYPE_RESULT_WARNING, BaseMessages.getString( PKG,
+                    "DetectRowChangeMeta.CheckResult.ConditionLosesPrecision", fieldNames[i], valueMeta
+                        .getTypeDesc() ), stepMeta );
+            remarks.add( cr );
+          }
+        } catch ( KettleException e ) {
+          cr = new CheckResult( CheckResultInterface.TYPE_RESULT_ERROR, e.getSuperMessage(), stepMeta );
+          remarks.add( cr );
+        }
+      }
+    }
   }
 
   @Override
@@ -231,6 +392,104 @@ public class DetectRowChangeMeta extends BaseStepMeta implements StepMetaInterfa
     this.includeOldValue = includeOldValue;
   }
   
+  public String[] getChangeCondition() {
+    return changeCondition;
+  }
+
+  public void setChangeCondition( String[] changeCondition ) {
+    this.changeCondition = changeCondition;
+  }
+
+  public boolean isIncludeChangeFlags() {
+    return includeChangeFlags;
+  }
+
+  public void setIncludeChangeFlags( boolean includeChangeFlags ) {
+    this.includeChangeFlags = includeChangeFlags;
+  }
+
+  public boolean isAdaptiveOrder() {
+    return adaptiveOrder;
+  }
+
+  public void setAdaptiveOrder( boolean adaptiveOrder ) {
+    this.adaptiveOrder = adaptiveOrder;
+  }
+
+  public int getWindowMode() {
+    return windowMode;
+  }
+
+  public void setWindowMode( int windowMode ) {
+    this.windowMode = windowMode;
+  }
+
+  public int getWindowSize() {
+    return windowSize;
+  }
+
+  public void setWindowSize( int windowSize ) {
+    this.windowSize = windowSize;
+  }
+
+  public int getWindowTime() {
+    return windowTime;
+  }
+
+  public void setWindowTime( int windowTime ) {
+    this.windowTime = windowTime;
+  }
+
+  public int getWindowMaxSize() {
+    return windowMaxSize;
+  }
+
+  public void setWindowMaxSize( int windowMaxSize ) {
+    this.windowMaxSize = windowMaxSize;
+  }
+
+  public String getWindowTimeField() {
+    return windowTimeField;
+  }
+
+  public void setWindowTimeField( String windowTimeField ) {
+    this.windowTimeField = windowTimeField;
+  }
+
+  public static String getWindowModeCode( int windowMode ) {
+    if ( windowMode < 0 || windowMode >= windowModeCodes.length ) {
+      return windowModeCodes[WINDOW_MODE_NONE];
+    }
+    return windowModeCodes[windowMode];
+  }
+
+  public static int getWindowModeByCode( String code ) {
+    for ( int i = 0; i < windowModeCodes.length; i++ ) {
+      if ( windowModeCodes[i].equalsIgnoreCase( code ) ) {
+        return i;
+      }
+    }
+    return WINDOW_MODE_NONE;
+  }
+
+  public static int getWindowModeByDescription( String description ) {
+    for ( int i = 0; i < windowModeDescriptions.length; i++ ) {
+      if ( windowModeDescriptions[i].equalsIgnoreCase( description ) ) {
+        return i;
+      }
+    }
+    return WINDOW_MODE_NONE;
+  }
+
+  private boolean hasChangeConditions() {
+    for ( int i = 0; i < changeCondition.length; i++ ) {
+      if ( !Const.isEmpty( changeCondition[i] ) ) {
+        return true;
+      }
+    }
+    return false;
+  }
+
   public int findNumTrackedValues() {
     int numTrackedValues = 0;
     
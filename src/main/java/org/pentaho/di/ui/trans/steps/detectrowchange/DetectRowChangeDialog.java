@@ -29,6 +29,7 @@ import java.util.Map;
 import java.util.Set;
 
 import org.eclipse.swt.SWT;
+import org.eclipse.swt.custom.CCombo;
 import org.eclipse.swt.events.ModifyEvent;
 import org.eclipse.swt.events.ModifyListener;
 import org.eclipse.swt.events.SelectionAdapter;
@@ -69,6 +70,34 @@ public class DetectRowChangeDialog extends BaseStepDialog implements StepDialogI
 
   private DetectRowChangeMeta input;
 
+  private Label wlIncludeChangeFlags;
+  private Button wIncludeChangeFlags;
+  private FormData fdlIncludeChangeFlags, fdIncludeChangeFlags;
+
+  private Label wlAdaptiveOrder;
+  private Button wAdaptiveOrder;
+  private FormData fdlAdaptiveOrder, fdAdaptiveOrder;
+
+  private Label wlWindowMode;
+  private CCombo wWindowMode;
+  private FormData fdlWindowMode, fdWindowMode;
+
+  private Label wlWindowSize;
+  private Text wWindowSize;
+  private FormData fdlWindowSize, fdWindowSize;
+
+  private Label wlWindowTime;
+  private Text wWindowTime;
+  private FormData fdlWindowTime, fdWindowTime;
+
+  private Label wlWindowMaxSize;
+  private Text wWindowMaxSize;
+  private FormData fdlWindowMaxSize, fdWindowMaxSize;
+
+  private Label wlWindowTimeField;
+  private CCombo wWindowTimeField;
+  private FormData fdlWindowTimeField, fdWindowTimeField;
+
   private Label wlFields;
   private TableView wFields;
   private FormData fdlFields, fdFields;
@@ -126,6 +155,149 @@ public class DetectRowChangeDialog extends BaseStepDialog implements StepDialogI
     fdStepname.right = new FormAttachment( 100, 0 );
     wStepname.setLayoutData( fdStepname );
 
+    SelectionAdapter lsSelMod = new SelectionAdapter() {
+      public void widgetSelected( SelectionEvent arg0 ) {
+        input.setChanged();
+      }
+    };
+
+    // Include changed flags line
+    wlIncludeChangeFlags = new Label( shell, SWT.RIGHT );
+    wlIncludeChangeFlags.setText( BaseMessages.getString( PKG, "DetectRowChangeDialog.IncludeChangeFlags.Label" ) );
+    props.setLook( wlIncludeChangeFlags );
+    fdlIncludeChangeFlags = new FormData();
+    fdlIncludeChangeFlags.left = new FormAttachment( 0, 0 );
+    fdlIncludeChangeFlags.right = new FormAttachment( middle, -margin );
+    fdlIncludeChangeFlags.top = new FormAttachment( wStepname, margin );
+    wlIncludeChangeFlags.setLayoutData( fdlIncludeChangeFlags );
+    wIncludeChangeFlags = new Button( shell, SWT.CHECK );
+    wIncludeChangeFlags.setToolTipText( BaseMessages.getString( PKG,
+        "DetectRowChangeDialog.IncludeChangeFlags.Tooltip" ) );
+    props.setLook( wIncludeChangeFlags );
+    fdIncludeChangeFlags = new FormData();
+    fdIncludeChangeFlags.left = new FormAttachment( middle, 0 );
+    fdIncludeChangeFlags.top = new FormAttachment( wStepname, margin );
+    fdIncludeChangeFlags.right = new FormAttachment( 100, 0 );
+    wIncludeChangeFlags.setLayoutData( fdIncludeChangeFlags );
+    wIncludeChangeFlags.addSelectionListener( lsSelMod );
+
+    // Adaptive comparison order line
+    wlAdaptiveOrder = new Label( shell, SWT.RIGHT );
+    wlAdaptiveOrder.setText( BaseMessages.getString( PKG, "DetectRowChangeDialog.AdaptiveOrder.Label" ) );
+    props.setLook( wlAdaptiveOrder );
+    fdlAdaptiveOrder = new FormData();
+    fdlAdaptiveOrder.left = new FormAttachment( 0, 0 );
+    fdlAdaptiveOrder.right = new FormAttachment( middle, -margin );
+    fdlAdaptiveOrder.top = new FormAttachment( wIncludeChangeFlags, margin );
+    wlAdaptiveOrder.setLayoutData( fdlAdaptiveOrder );
+    wAdaptiveOrder = new Button( shell, SWT.CHECK );
+    wAdaptiveOrder.setToolTipText( BaseMessages.getString( PKG, "DetectRowChangeDialog.AdaptiveOrder.Tooltip" ) );
+    props.setLook( wAdaptiveOrder );
+    fdAdaptiveOrder = new FormData();
+    fdAdaptiveOrder.left = new FormAttachment( middle, 0 );
+    fdAdaptiveOrder.top = new FormAttachment( wIncludeChangeFlags, margin );
+    fdAdaptiveOrder.right = new FormAttachment( 100, 0 );
+    wAdaptiveOrder.setLayoutData( fdAdaptiveOrder );
+    wAdaptiveOrder.addSelectionListener( lsSelMod );
+
+    // Window mode line
+    wlWindowMode = new Label( shell, SWT.RIGHT );
+    wlWindowMode.setText( BaseMessages.getString( PKG, "DetectRowChangeDialog.WindowMode.Label" ) );
+    props.setLook( wlWindowMode );
+    fdlWindowMode = new FormData();
+    fdlWindowMode.left = new FormAttachment( 0, 0 );
+    fdlWindowMode.right = new FormAttachment( middle, -margin );
+    fdlWindowMode.top = new FormAttachment( wAdaptiveOrder, margin );
+    wlWindowMode.setLayoutData( fdlWindowMode );
+    wWindowMode = new CCombo( shell, SWT.SINGLE | SWT.READ_ONLY | SWT.BORDER );
+    wWindowMode.setItems( DetectRowChangeMeta.windowModeDescriptions );
+    wWindowMode.setToolTipText( BaseMessages.getString( PKG, "DetectRowChangeDialog.WindowMode.Tooltip" ) );
+    props.setLook( wWindowMode );
+    fdWindowMode = new FormData();
+    fdWindowMode.left = new FormAttachment( middle, 0 );
+    fdWindowMode.top = new FormAttachment( wAdaptiveOrder, margin );
+    fdWindowMode.right = new FormAttachment( 100, 0 );
+    wWindowMode.setLayoutData( fdWindowMode );
+    wWindowMode.addSelectionListener( new SelectionAdapter() {
+      public void widgetSelected( SelectionEvent e ) {
+        input.setChanged();
+        setWindowEnabled();
+      }
+    } );
+
+    // Window size line
+    wlWindowSize = new Label( shell, SWT.RIGHT );
+    wlWindowSize.setText( BaseMessages.getString( PKG, "DetectRowChangeDialog.WindowSize.Label" ) );
+    props.setLook( wlWindowSize );
+    fdlWindowSize = new FormData();
+    fdlWindowSize.left = new FormAttachment( 0, 0 );
+    fdlWindowSize.right = new FormAttachment( middle, -margin );
+    fdlWindowSize.top = new FormAttachment( wWindowMode, margin );
+    wlWindowSize.setLayoutData( fdlWindowSize );
+    wWindowSize = new Text( shell, SWT.SINGLE | SWT.LEFT | SWT.BORDER );
+    props.setLook( wWindowSize );
+    wWindowSize.addModifyListener( lsMod );
+    fdWindowSize = new FormData();
+    fdWindowSize.left = new FormAttachment( middle, 0 );
+    fdWindowSize.top = new FormAttachment( wWindowMode, margin );
+    fdWindowSize.right = new FormAttachment( 100, 0 );
+    wWindowSize.setLayoutData( fdWindowSize );
+
+    // Window time line
+    wlWindowTime = new Label( shell, SWT.RIGHT );
+    wlWindowTime.setText( BaseMessages.getString( PKG, "DetectRowChangeDialog.WindowTime.Label" ) );
+    props.setLook( wlWindowTime );
+    fdlWindowTime = new FormData();
+    fdlWindowTime.left = new FormAttachment( 0, 0 );
+    fdlWindowTime.right = new FormAttachment( middle, -margin );
+    fdlWindowTime.top = new FormAttachment( wWindowSize, margin );
+    wlWindowTime.setLayoutData( fdlWindowTime );
+    wWindowTime = new Text( shell, SWT.SINGLE | SWT.LEFT | SWT.BORDER );
+    props.setLook( wWindowTime );
+    wWindowTime.addModifyListener( lsMod );
+    fdWindowTime = new FormData();
+    fdWindowTime.left = new FormAttachment( middle, 0 );
+    fdWindowTime.top = new FormAttachment( wWindowSize, margin );
+    fdWindowTime.right = new FormAttachment( 100, 0 );
+    wWindowTime.setLayoutData( fdWindowTime );
+
+    // Hard cap on the rows in a window limited by time only
+    wlWindowMaxSize = new Label( shell, SWT.RIGHT );
+    wlWindowMaxSize.setText( BaseMessages.getString( PKG, "DetectRowChangeDialog.WindowMaxSize.Label" ) );
+    props.setLook( wlWindowMaxSize );
+    fdlWindowMaxSize = new FormData();
+    fdlWindowMaxSize.left = new FormAttachment( 0, 0 );
+    fdlWindowMaxSize.right = new FormAttachment( middle, -margin );
+    fdlWindowMaxSize.top = new FormAttachment( wWindowTime, margin );
+    wlWindowMaxSize.setLayoutData( fdlWindowMaxSize );
+    wWindowMaxSize = new Text( shell, SWT.SINGLE | SWT.LEFT | SWT.BORDER );
+    wWindowMaxSize.setToolTipText( BaseMessages.getString( PKG, "DetectRowChangeDialog.WindowMaxSize.Tooltip" ) );
+    props.setLook( wWindowMaxSize );
+    wWindowMaxSize.addModifyListener( lsMod );
+    fdWindowMaxSize = new FormData();
+    fdWindowMaxSize.left = new FormAttachment( middle, 0 );
+    fdWindowMaxSize.top = new FormAttachment( wWindowTime, margin );
+    fdWindowMaxSize.right = new FormAttachment( 100, 0 );
+    wWindowMaxSize.setLayoutData( fdWindowMaxSize );
+
+    // Window time field line
+    wlWindowTimeField = new Label( shell, SWT.RIGHT );
+    wlWindowTimeField.setText( BaseMessages.getString( PKG, "DetectRowChangeDialog.WindowTimeField.Label" ) );
+    props.setLook( wlWindowTimeField );
+    fdlWindowTimeField = new FormData();
+    fdlWindowTimeField.left = new FormAttachment( 0, 0 );
+    fdlWindowTimeField.right = new FormAttachment( middle, -margin );
+    fdlWindowTimeField.top = new FormAttachment( wWindowMaxSize, margin );
+    wlWindowTimeField.setLayoutData( fdlWindowTimeField );
+    wWindowTimeField = new CCombo( shell, SWT.SINGLE | SWT.LEFT | SWT.BORDER );
+    props.setLook( wWindowTimeField );
+    wWindowTimeField.addModifyListener( lsMod );
+    fdWindowTimeField = new FormData();
+    fdWindowTimeField.left = new FormAttachment( middle, 0 );
+    fdWindowTimeField.top = new FormAttachment( wWindowMaxSize, margin );
+    fdWindowTimeField.right = new FormAttachment( 100, 0 );
+    wWindowTimeField.setLayoutData( fdWindowTimeField );
+
     wOK = new Button( shell, SWT.PUSH );
     wOK.setText( BaseMessages.getString( PKG, "System.Button.OK" ) );
     wGet = new Button( shell, SWT.PUSH );
@@ -141,7 +313,7 @@ public class DetectRowChangeDialog extends BaseStepDialog implements StepDialogI
     props.setLook( wlFields );
     fdlFields = new FormData();
     fdlFields.left = new FormAttachment( 0, 0 );
-    fdlFields.top = new FormAttachment( wStepname, margin );
+    fdlFields.top = new FormAttachment( wWindowTimeField, margin );
     wlFields.setLayoutData( fdlFields );
 
     final int FieldsRows = input.getFieldNames().length;
@@ -155,7 +327,11 @@ public class DetectRowChangeDialog extends BaseStepDialog implements StepDialogI
                 BaseMessages.getString( PKG, "System.Combo.No" ) } ),
           new ColumnInfo( BaseMessages.getString( PKG, "DetectRowChangeDialog.IncludeOldValue.Column" ),
               ColumnInfo.COLUMN_TYPE_CCOMBO, new String[] { BaseMessages.getString( PKG, "System.Combo.Yes" ),
-                BaseMessages.getString( PKG, "System.Combo.No" ) } ), };
+                BaseMessages.getString( PKG, "System.Combo.No" ) } ),
+          new ColumnInfo( BaseMessages.getString( PKG, "DetectRowChangeDialog.ChangeCondition.Column" ),
+              ColumnInfo.COLUMN_TYPE_TEXT, false ), };
+    colinf[1].setToolTip( BaseMessages.getString( PKG, "DetectRowChangeDialog.CaseInsensitive.Tooltip" ) );
+    colinf[3].setToolTip( BaseMessages.getString( PKG, "DetectRowChangeDialog.ChangeCondition.Tooltip" ) );
 
     wFields =
         new TableView( transMeta, shell, SWT.BORDER | SWT.FULL_SELECTION | SWT.MULTI, colinf, FieldsRows, lsMod, props );
@@ -261,10 +437,34 @@ public class DetectRowChangeDialog extends BaseStepDialog implements StepDialogI
     Set<String> keySet = fields.keySet();
     List<String> entries = new ArrayList<String>( keySet );
 
-    String fieldNames[] = entries.toArray( new String[entries.size()] );
+    final String fieldNames[] = entries.toArray( new String[entries.size()] );
 
     Const.sortStrings( fieldNames );
     colinf[0].setComboValues( fieldNames );
+
+    // The time field combo is a widget, so update it on the display thread
+    shell.getDisplay().asyncExec( new Runnable() {
+      public void run() {
+        if ( !wWindowTimeField.isDisposed() ) {
+          String timeField = wWindowTimeField.getText();
+          wWindowTimeField.setItems( fieldNames );
+          wWindowTimeField.setText( timeField );
+        }
+      }
+    } );
+  }
+
+  private void setWindowEnabled() {
+    boolean windowed =
+        DetectRowChangeMeta.getWindowModeByDescription( wWindowMode.getText() ) != DetectRowChangeMeta.WINDOW_MODE_NONE;
+    wlWindowSize.setEnabled( windowed );
+    wWindowSize.setEnabled( windowed );
+    wlWindowTime.setEnabled( windowed );
+    wWindowTime.setEnabled( windowed );
+    wlWindowMaxSize.setEnabled( windowed );
+    wWindowMaxSize.setEnabled( windowed );
+    wlWindowTimeField.setEnabled( windowed );
+    wWindowTimeField.setEnabled( windowed );
   }
 
   /**
@@ -284,11 +484,21 @@ public class DetectRowChangeDialog extends BaseStepDialog implements StepDialogI
           .getString( PKG, "System.Combo.No" ) );
       ti.setText( 3, input.getIncludeOldValue()[i] ? BaseMessages.getString( PKG, "System.Combo.Yes" ) : BaseMessages
           .getString( PKG, "System.Combo.No" ) );
+      ti.setText( 4, Const.NVL( input.getChangeCondition()[i], "" ) );
     }
 
     wFields.setRowNums();
     wFields.optWidth( true );
 
+    wIncludeChangeFlags.setSelection( input.isIncludeChangeFlags() );
+    wAdaptiveOrder.setSelection( input.isAdaptiveOrder() );
+    wWindowMode.setText( DetectRowChangeMeta.windowModeDescriptions[input.getWindowMode()] );
+    wWindowSize.setText( input.getWindowSize() > 0 ? Integer.toString( input.getWindowSize() ) : "" );
+    wWindowTime.setText( input.getWindowTime() > 0 ? Integer.toString( input.getWindowTime() ) : "" );
+    wWindowMaxSize.setText( Integer.toString( input.getWindowMaxSize() ) );
+    wWindowTimeField.setText( Const.NVL( input.getWindowTimeField(), "" ) );
+    setWindowEnabled();
+
     wStepname.selectAll();
     wStepname.setFocus();
   }
@@ -317,7 +527,15 @@ public class DetectRowChangeDialog extends BaseStepDialog implements StepDialogI
           BaseMessages.getString( PKG, "System.Combo.Yes" ).equalsIgnoreCase( ti.getText( 2 ) );
       input.getIncludeOldValue()[i] =
           BaseMessages.getString( PKG, "System.Combo.Yes" ).equalsIgnoreCase( ti.getText( 3 ) );
+      input.getChangeCondition()[i] = ti.getText( 4 );
     }
+    input.setIncludeChangeFlags( wIncludeChangeFlags.getSelection() );
+    input.setAdaptiveOrder( wAdaptiveOrder.getSelection() );
+    input.setWindowMode( DetectRowChangeMeta.getWindowModeByDescription( wWindowMode.getText() ) );
+    input.setWindowSize( Const.toInt( wWindowSize.getText(), 0 ) );
+    input.setWindowTime( Const.toInt( wWindowTime.getText(), 0 ) );
+    input.setWindowMaxSize( Const.toInt( wWindowMaxSize.getText(), DetectRowChangeMeta.DEFAULT_WINDOW_MAX_SIZE ) );
+    input.setWindowTimeField( wWindowTimeField.getText() );
 
     dispose();
   }
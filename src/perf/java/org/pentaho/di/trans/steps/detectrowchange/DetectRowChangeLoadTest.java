@@ -0,0 +1,265 @@
+/*******************************************************************************
+ *
+ * Pentaho Data Integration
+ *
+ * Copyright (C) 2002-2012 by Pentaho : http://www.pentaho.com
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+package org.pentaho.di.trans.steps.detectrowchange;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+
+import org.pentaho.di.core.KettleEnvironment;
+import org.pentaho.di.core.exception.KettleException;
+import org.pentaho.di.trans.Trans;
+import org.pentaho.di.trans.TransMeta;
+import org.pentaho.di.trans.step.StepInterface;
+
+/**
+ * End-to-end load test for the Detect change in row step. Each {@link LoadScenario} is run as a real transformation in
+ * an embedded Kettle engine (no repository) and reported with rows/sec, heap high-water mark and GC time, measured on
+ * the plain step, and the p99 time spent inside the step per row, measured in a second run with a
+ * {@link TimedDetectRowChange}. Throughput is compared with a stored baseline and the run fails when a scenario
+ * regresses by more than the threshold.
+ *
+ * Usage: <code>DetectRowChangeLoadTest &lt;baseline file&gt;</code>, configured with system properties:
+ * <ul>
+ * <li>perf.rows - rows per scenario (default 1000000)</li>
+ * <li>perf.cardinality - number of distinct key values (default 1000)</li>
+ * <li>perf.runLength - rows per key value in the runs scenarios (default 10)</li>
+ * <li>perf.payloadWidth - width of the payload field in characters (default 100)</li>
+ * <li>perf.threshold - allowed throughput drop versus the baseline, as a fraction (default 0.10)</li>
+ * <li>perf.updateBaseline - write the measured throughput as the new baseline instead of comparing (default false)</li>
+ * </ul>
+ */
+public class DetectRowChangeLoadTest {
+
+  private static final String BASELINE_SUFFIX = ".rowsPerSecond";
+
+  public static void main( String[] args ) throws Exception {
+    if ( args.length < 1 ) {
+      System.err.println( "Usage: DetectRowChangeLoadTest <baseline file>" );
+      System.exit( 2 );
+    }
+    File baselineFile = new File( args[0] );
+
+    long rows = Long.getLong( "perf.rows", 1000000L );
+    long cardinality = Long.getLong( "perf.cardinality", 1000L );
+    long runLength = Long.getLong( "perf.runLength", 10L );
+    int payloadWidth = Integer.getInteger( "perf.payloadWidth", 100 );
+    double threshold = Double.parseDouble( System.getProperty( "perf.threshold", "0.10" ) );
+    boolean updateBaseline = Boolean.getBoolean( "perf.updateBaseline" );
+
+    // Register the step from its @Step annotation, the same way a plugin folder would
+    System.setProperty( "KETTLE_PLUGIN_CLASSES", DetectRowChangeMeta.class.getName() );
+    KettleEnvironment.init( false );
+
+    List<LoadScenario> scenarios = new ArrayList<LoadScenario>();
+    scenarios.add( new LoadScenario( "same-rows", rows, 1, rows, payloadWidth ) );
+    scenarios.add( new LoadScenario( "alldiff-rows", rows, cardinality, 1, payloadWidth ).includeOldValue( true ) );
+    scenarios.add( new LoadScenario( "runs", rows, cardinality, runLength, payloadWidth ).includeOldValue( true ) );
+    scenarios.add( new LoadScenario( "runs-condition", rows, cardinality, runLength, payloadWidth )
+        .changeCondition( "abs(new - old) > 1" ) );
+    scenarios.add( new LoadScenario( "wide-adaptive", rows, cardinality, 1, payloadWidth * 10 ).trackFields(
+        "payload", "run_length", "key" ).includeChangeFlags( false ).adaptiveOrder( true ) );
+    scenarios.add( new LoadScenario( "runs-window", rows, cardinality, runLength, payloadWidth ).window(
+        DetectRowChangeMeta.WINDOW_MODE_ANY_VALUE, 100 ) );
+
+    Properties baseline = loadBaseline( baselineFile );
+    Properties measured = new Properties();
+    List<String> regressions = new ArrayList<String>();
+
+    System.out.println( String.format( "%-16s %12s %14s %14s %14s %10s %10s", "scenario", "rows", "rows/sec",
+        "step p99 (us)", "heap peak (MB)", "GC (ms)", "baseline" ) );
+    for ( LoadScenario scenario : scenarios ) {
+      Result result = run( scenario );
+      measured.setProperty( scenario.getName() + BASELINE_SUFFIX, Long.toString( (long) result.rowsPerSecond ) );
+
+      String expected = baseline.getProperty( scenario.getName() + BASELINE_SUFFIX );
+      String verdict = "-";
+      if ( expected != null && !updateBaseline ) {
+        double minimum = Double.parseDouble( expected ) * ( 1.0 - threshold );
+        if ( result.rowsPerSecond < minimum ) {
+          verdict = "REGRESSED";
+          regressions.add( String.format( "%s: %.0f rows/sec, baseline %s, minimum %.0f", scenario.getName(),
+              result.rowsPerSecond, expected, minimum ) );
+        } else {
+          verdict = "ok";
+        }
+      }
+      System.out.println( String.format( "%-16s %12d %14.0f %14.1f %14.1f %10d %10s", scenario.getName(),
+          result.rowsRead, result.rowsPerSecond, result.p99Nanos / 1000.0, result.heapPeakBytes / 1048576.0,
+          result.gcMillis, verdict ) );
+    }
+
+    if ( updateBaseline ) {
+      saveBaseline( baselineFile, measured );
+      System.out.println( "Baseline written to " + baselineFile );
+      return;
+    }
+    if ( baseline.isEmpty() ) {
+      System.out.println( "No baseline recorded in " + baselineFile + ", nothing was compared" );
+    }
+    if ( !regressions.isEmpty() ) {
+      System.err.println( "Throughput regressed by more than " + (int) ( threshold * 100 ) + "%:" );
+      for ( String regression : regressions ) {
+        System.err.println( "  " + regression );
+      }
+      System.exit( 1 );
+    }
+  }
+
+  static Result run( LoadScenario scenario ) throws KettleException {
+    Result result = new Result();
+
+    // Throughput, heap and GC are measured on the plain step, without any per-row instrumentation
+    Trans trans = prepare( scenario.createTransMeta() );
+    StepInterface detect = trans.getStepInterface( LoadScenario.DETECT_STEP_NAME, 0 );
+    System.gc();
+    HeapSampler heap = new HeapSampler();
+    heap.start();
+    long gcBefore = getGcMillis();
+    long start = System.nanoTime();
+    execute( scenario.getName(), trans );
+    long elapsed = System.nanoTime() - start;
+    result.gcMillis = getGcMillis() - gcBefore;
+    result.heapPeakBytes = heap.finish();
+    result.rowsRead = detect.getLinesRead();
+    result.rowsPerSecond = result.rowsRead * 1000000000.0 / Math.max( 1, elapsed );
+
+    // Per-row latency in a second run, timing only the work done inside the step
+    LatencyHistogram latency = new LatencyHistogram();
+    execute( scenario.getName(), prepare( scenario.createTransMeta( latency ) ) );
+    result.p99Nanos = latency.getPercentile( 99.0 );
+    return result;
+  }
+
+  private static Trans prepare( TransMeta transMeta ) throws KettleException {
+    Trans trans = new Trans( transMeta );
+    trans.prepareExecution( null );
+    return trans;
+  }
+
+  private static void execute( String name, Trans trans ) throws KettleException {
+    trans.startThreads();
+    trans.waitUntilFinished();
+    if ( trans.getErrors() > 0 ) {
+      throw new KettleException( "Scenario " + name + " finished with errors" );
+    }
+  }
+
+  private static long getGcMillis() {
+    long total = 0;
+    for ( GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans() ) {
+      total += Math.max( 0, gc.getCollectionTime() );
+    }
+    return total;
+  }
+
+  private static Properties loadBaseline( File file ) throws Exception {
+    Properties properties = new Properties();
+    if ( file.exists() ) {
+      InputStream in = new FileInputStream( file );
+      try {
+        properties.load( in );
+      } finally {
+        in.close();
+      }
+    }
+    return properties;
+  }
+
+  private static void saveBaseline( File file, Properties properties ) throws Exception {
+    OutputStream out = new FileOutputStream( file );
+    try {
+      properties.store( out, "Detect change in row load test baseline (rows/sec per scenario)" );
+    } finally {
+      out.close();
+    }
+  }
+
+  /**
+   * Polls the total heap in use, since the per-pool peaks are reached at different times and do not add up to a
+   * high-water mark.
+   */
+  static class HeapSampler extends Thread {
+    private static final long INTERVAL_MILLIS = 10;
+
+    private final MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+
+    private volatile boolean running = true;
+
+    private long max;
+
+    HeapSampler() {
+      super( "heap-sampler" );
+      setDaemon( true );
+    }
+
+    @Override
+    public void run() {
+      while ( running ) {
+        sample();
+        try {
+          Thread.sleep( INTERVAL_MILLIS );
+        } catch ( InterruptedException e ) {
+          return;
+        }
+      }
+    }
+
+    private synchronized void sample() {
+      max = Math.max( max, memory.getHeapMemoryUsage().getUsed() );
+    }
+
+    /**
+     * Stops sampling and returns the highest heap usage seen, in bytes.
+     */
+    long finish() {
+      running = false;
+      interrupt();
+      try {
+        join();
+      } catch ( InterruptedException e ) {
+        Thread.currentThread().interrupt();
+      }
+      sample();
+      synchronized ( this ) {
+        return max;
+      }
+    }
+  }
+
+  static class Result {
+    long rowsRead;
+    double rowsPerSecond;
+    long p99Nanos;
+    long heapPeakBytes;
+    long gcMillis;
+  }
+}
@@ -0,0 +1,86 @@
+/*******************************************************************************
+ *
+ * Pentaho Data Integration
+ *
+ * Copyright (C) 2002-2012 by Pentaho : http://www.pentaho.com
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+package org.pentaho.di.trans.steps.detectrowchange;
+
+/**
+ * Fixed-size log-linear histogram of nanosecond latencies. Values below 64ns are counted exactly, larger values in 32
+ * buckets per power of two, so percentiles are accurate to about 3% without keeping every sample.
+ */
+public class LatencyHistogram {
+  private static final int SUB_BUCKET_BITS = 5;
+  private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+  private static final int LINEAR_LIMIT = 64;
+  private static final int LINEAR_EXPONENT = 6;
+
+  private final long[] counts = new long[LINEAR_LIMIT + ( 63 - LINEAR_EXPONENT ) * SUB_BUCKETS];
+
+  private long total;
+
+  public void record( long nanos ) {
+    if ( nanos < 0 ) {
+      nanos = 0;
+    }
+    counts[indexOf( nanos )]++;
+    total++;
+  }
+
+  public long getCount() {
+    return total;
+  }
+
+  /**
+   * @return the lower bound of the bucket holding the given percentile (0-100), or 0 when nothing was recorded
+   */
+  public long getPercentile( double percentile ) {
+    if ( total == 0 ) {
+      return 0;
+    }
+    long rank = (long) Math.ceil( total * percentile / 100.0 );
+    long seen = 0;
+    for ( int i = 0; i < counts.length; i++ ) {
+      seen += counts[i];
+      if ( seen >= rank && counts[i] > 0 ) {
+        return valueOf( i );
+      }
+    }
+    return valueOf( counts.length - 1 );
+  }
+
+  static int indexOf( long nanos ) {
+    if ( nanos < LINEAR_LIMIT ) {
+      return (int) nanos;
+    }
+    int exponent = 63 - Long.numberOfLeadingZeros( nanos );
+    int subBucket = (int) ( nanos >>> ( exponent - SUB_BUCKET_BITS ) ) & ( SUB_BUCKETS - 1 );
+    return LINEAR_LIMIT + ( exponent - LINEAR_EXPONENT ) * SUB_BUCKETS + subBucket;
+  }
+
+  static long valueOf( int index ) {
+    if ( index < LINEAR_LIMIT ) {
+      return index;
+    }
+    int exponent = ( index - LINEAR_LIMIT ) / SUB_BUCKETS + LINEAR_EXPONENT;
+    long subBucket = ( index - LINEAR_LIMIT ) % SUB_BUCKETS;
+    return ( 1L << exponent ) + ( subBucket << ( exponent - SUB_BUCKET_BITS ) );
+  }
+}
@@ -0,0 +1,219 @@
+/*******************************************************************************
+ *
+ * Pentaho Data Integration
+ *
+ * Copyright (C) 2002-2012 by Pentaho : http://www.pentaho.com
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+package org.pentaho.di.trans.steps.detectrowchange;
+
+import org.pentaho.di.core.plugins.PluginRegistry;
+import org.pentaho.di.core.plugins.StepPluginType;
+import org.pentaho.di.core.row.ValueMetaInterface;
+import org.pentaho.di.trans.TransHopMeta;
+import org.pentaho.di.trans.TransMeta;
+import org.pentaho.di.trans.step.StepMeta;
+import org.pentaho.di.trans.step.StepMetaInterface;
+import org.pentaho.di.trans.steps.addsequence.AddSequenceMeta;
+import org.pentaho.di.trans.steps.calculator.CalculatorMeta;
+import org.pentaho.di.trans.steps.calculator.CalculatorMetaFunction;
+import org.pentaho.di.trans.steps.dummytrans.DummyTransMeta;
+import org.pentaho.di.trans.steps.rowgenerator.RowGeneratorMeta;
+
+/**
+ * One load test scenario: a transformation in the style of the test-*.ktr files, generating rows with a Generate Rows
+ * step, numbering them with a Sequence, deriving a key that stays the same for <code>runLength</code> rows and cycles
+ * through <code>cardinality</code> values, and feeding them through Detect change in row into a Dummy step.
+ */
+public class LoadScenario {
+  public static final String DETECT_STEP_NAME = "Detect change in row";
+
+  private static final String DETECT_PLUGIN_ID = "detectrowchange";
+
+  private final String name;
+
+  private final long rows;
+
+  private final long cardinality;
+
+  private final long runLength;
+
+  private final int payloadWidth;
+
+  private String[] trackedFields = new String[] { "key" };
+
+  private String changeCondition;
+
+  private boolean includeOldValue;
+
+  private boolean includeChangeFlags = true;
+
+  private boolean adaptiveOrder;
+
+  private int windowMode = DetectRowChangeMeta.WINDOW_MODE_NONE;
+
+  private int windowSize;
+
+  public LoadScenario( String name, long rows, long cardinality, long runLength, int payloadWidth ) {
+    this.name = name;
+    this.rows = rows;
+    this.cardinality = Math.max( 1, cardinality );
+    this.runLength = Math.max( 1, runLength );
+    this.payloadWidth = payloadWidth;
+  }
+
+  public LoadScenario trackFields( String... fields ) {
+    this.trackedFields = fields;
+    return this;
+  }
+
+  public LoadScenario changeCondition( String condition ) {
+    this.changeCondition = condition;
+    return this;
+  }
+
+  public LoadScenario includeOldValue( boolean include ) {
+    this.includeOldValue = include;
+    return this;
+  }
+
+  public LoadScenario includeChangeFlags( boolean include ) {
+    this.includeChangeFlags = include;
+    return this;
+  }
+
+  public LoadScenario adaptiveOrder( boolean adaptive ) {
+    this.adaptiveOrder = adaptive;
+    return this;
+  }
+
+  public LoadScenario window( int mode, int size ) {
+    this.windowMode = mode;
+    this.windowSize = size;
+    return this;
+  }
+
+  public String getName() {
+    return name;
+  }
+
+  public long getRows() {
+    return rows;
+  }
+
+  public TransMeta createTransMeta() {
+    return createTransMeta( null );
+  }
+
+  /**
+   * @param latency
+   *          if not null, the step records the time it spends on each row into this histogram
+   */
+  public TransMeta createTransMeta( LatencyHistogram latency ) {
+    TransMeta transMeta = new TransMeta();
+    transMeta.setName( "perf-" + name );
+
+    // Generate Rows: the run length used to derive the key and a constant payload to widen the rows
+    RowGeneratorMeta generator = new RowGeneratorMeta();
+    generator.setDefault();
+    generator.allocate( 2 );
+    setGeneratorField( generator, 0, "run_length", "Integer", Long.toString( runLength ) );
+    setGeneratorField( generator, 1, "payload", "String", createPayload() );
+    generator.setRowLimit( Long.toString( rows ) );
+
+    // Sequence: 0, 1, ... cycling after runLength * cardinality rows
+    AddSequenceMeta sequence = new AddSequenceMeta();
+    sequence.setDefault();
+    sequence.setValuename( "seq" );
+    sequence.setUseCounter( true );
+    sequence.setUseDatabase( false );
+    sequence.setStartAt( 0 );
+    sequence.setIncrementBy( 1 );
+    sequence.setMaxValue( runLength * cardinality - 1 );
+
+    // Calculator: key = seq / run_length
+    CalculatorMetaFunction keyFunction = new CalculatorMetaFunction();
+    keyFunction.setFieldName( "key" );
+    keyFunction.setCalcType( CalculatorMetaFunction.CALC_DIVIDE );
+    keyFunction.setFieldA( "seq" );
+    keyFunction.setFieldB( "run_length" );
+    keyFunction.setValueType( ValueMetaInterface.TYPE_INTEGER );
+    keyFunction.setValueLength( -1 );
+    keyFunction.setValuePrecision( -1 );
+    CalculatorMeta calculator = new CalculatorMeta();
+    calculator.setCalculation( new CalculatorMetaFunction[] { keyFunction } );
+
+    DetectRowChangeMeta detect = latency == null ? new DetectRowChangeMeta() : new TimedDetectRowChangeMeta( latency );
+    detect.setDefault();
+    detect.allocate( trackedFields.length );
+    for ( int i = 0; i < trackedFields.length; i++ ) {
+      detect.getFieldNames()[i] = trackedFields[i];
+      detect.getCaseSensitive()[i] = true;
+      detect.getIncludeOldValue()[i] = includeOldValue;
+      detect.getChangeCondition()[i] = "key".equals( trackedFields[i] ) ? changeCondition : null;
+    }
+    detect.setIncludeChangeFlags( includeChangeFlags );
+    detect.setAdaptiveOrder( adaptiveOrder );
+    detect.setWindowMode( windowMode );
+    detect.setWindowSize( windowSize );
+
+    DummyTransMeta dummy = new DummyTransMeta();
+
+    StepMeta generatorStep = addStep( transMeta, "Generate Rows", generator );
+    StepMeta sequenceStep = addStep( transMeta, "Add sequence", sequence );
+    StepMeta calculatorStep = addStep( transMeta, "Calculate key", calculator );
+    StepMeta detectStep = addStep( transMeta, DETECT_PLUGIN_ID, DETECT_STEP_NAME, detect );
+    StepMeta dummyStep = addStep( transMeta, "Dummy", dummy );
+
+    transMeta.addTransHop( new TransHopMeta( generatorStep, sequenceStep ) );
+    transMeta.addTransHop( new TransHopMeta( sequenceStep, calculatorStep ) );
+    transMeta.addTransHop( new TransHopMeta( calculatorStep, detectStep ) );
+    transMeta.addTransHop( new TransHopMeta( detectStep, dummyStep ) );
+
+    return transMeta;
+  }
+
+  private static void setGeneratorField( RowGeneratorMeta generator, int i, String fieldName, String type,
+      String value ) {
+    generator.getFieldName()[i] = fieldName;
+    generator.getFieldType()[i] = type;
+    generator.getValue()[i] = value;
+    generator.getFieldLength()[i] = -1;
+    generator.getFieldPrecision()[i] = -1;
+  }
+
+  private static StepMeta addStep( TransMeta transMeta, String stepName, StepMetaInterface stepMetaInterface ) {
+    String pluginId = PluginRegistry.getInstance().getPluginId( StepPluginType.class, stepMetaInterface );
+    return addStep( transMeta, pluginId, stepName, stepMetaInterface );
+  }
+
+  private static StepMeta addStep( TransMeta transMeta, String pluginId, String stepName,
+      StepMetaInterface stepMetaInterface ) {
+    StepMeta stepMeta = new StepMeta( pluginId, stepName, stepMetaInterface );
+    transMeta.addStep( stepMeta );
+    return stepMeta;
+  }
+
+  private String createPayload() {
+    StringBuilder payload = new StringBuilder( payloadWidth );
+    for ( int i = 0; i < payloadWidth; i++ ) {
+      payload.append( (char) ( 'a' + i % 26 ) );
+    }
+    return payload.toString();
+  }
+}
@@ -0,0 +1,81 @@
+/*******************************************************************************
+ *
+ * Pentaho Data Integration
+ *
+ * Copyright (C) 2002-2012 by Pentaho : http://www.pentaho.com
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+package org.pentaho.di.trans.steps.detectrowchange;
+
+import org.pentaho.di.core.exception.KettleException;
+import org.pentaho.di.core.exception.KettleStepException;
+import org.pentaho.di.core.row.RowMetaInterface;
+import org.pentaho.di.trans.Trans;
+import org.pentaho.di.trans.TransMeta;
+import org.pentaho.di.trans.step.StepDataInterface;
+import org.pentaho.di.trans.step.StepMeta;
+import org.pentaho.di.trans.step.StepMetaInterface;
+
+/**
+ * The Detect change in row step, recording the time each call to processRow spends inside the step. Time spent
+ * waiting for an input row in getRow() or for room in the output buffer in putRow() is subtracted, so upstream and
+ * downstream steps do not show up in the latency.
+ */
+public class TimedDetectRowChange extends DetectRowChange {
+
+  private final LatencyHistogram latency;
+
+  private long blockedNanos;
+
+  public TimedDetectRowChange( StepMeta stepMeta, StepDataInterface stepDataInterface, int copyNr,
+      TransMeta transMeta, Trans trans, LatencyHistogram latency ) {
+    super( stepMeta, stepDataInterface, copyNr, transMeta, trans );
+    this.latency = latency;
+  }
+
+  @Override
+  public boolean processRow( StepMetaInterface smi, StepDataInterface sdi ) throws KettleException {
+    blockedNanos = 0;
+    long start = System.nanoTime();
+    boolean more = super.processRow( smi, sdi );
+    if ( more ) {
+      latency.record( System.nanoTime() - start - blockedNanos );
+    }
+    return more;
+  }
+
+  @Override
+  public Object[] getRow() throws KettleException {
+    long start = System.nanoTime();
+    try {
+      return super.getRow();
+    } finally {
+      blockedNanos += System.nanoTime() - start;
+    }
+  }
+
+  @Override
+  public void putRow( RowMetaInterface rowMeta, Object[] row ) throws KettleStepException {
+    long start = System.nanoTime();
+    try {
+      super.putRow( rowMeta, row );
+    } finally {
+      blockedNanos += System.nanoTime() - start;
+    }
+  }
+}
@@ -0,0 +1,144 @@
+/*******************************************************************************
+ *
+ * Pentaho Data Integration
+ *
+ * Copyright (C) 2002-2012 by Pentaho : http://www.pentaho.com
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+package org.pentaho.di.trans.steps.detectrowchange;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.junit.Test;
+import org.pentaho.di.core.exception.KettleException;
+import org.pentaho.di.core.row.ValueMetaInterface;
+import org.pentaho.di.core.row.value.ValueMetaBoolean;
+import org.pentaho.di.core.row.value.ValueMetaInteger;
+import org.pentaho.di.core.row.value.ValueMetaNumber;
+import org.pentaho.di.core.row.value.ValueMetaString;
+
+public class ChangeConditionTest {
+
+  private static final ValueMetaInterface INTEGER = new ValueMetaInteger( "i" );
+  private static final ValueMetaInterface NUMBER = new ValueMetaNumber( "n" );
+  private static final ValueMetaInterface STRING = new ValueMetaString( "s" );
+  private static final ValueMetaInterface BOOLEAN = new ValueMetaBoolean( "b" );
+
+  @Test
+  public void testPrecedence() throws Exception {
+    // 5 - 3 * 2 = -1, not (5 - 3) * 2 = 4
+    assertFalse( changed( "new - old * 2 > 0", INTEGER, 3L, 5L ) );
+    assertTrue( changed( "(new - old) * 2 > 0", INTEGER, 3L, 5L ) );
+    // && binds tighter than ||
+    assertTrue( changed( "old > 1 || new > 1 && false", INTEGER, 2L, 0L ) );
+    assertFalse( changed( "(old > 1 || new > 1) && false", INTEGER, 2L, 0L ) );
+    assertTrue( changed( "!(old == new)", INTEGER, 1L, 2L ) );
+    assertTrue( changed( "-old + new == 1", INTEGER, 1L, 2L ) );
+    assertTrue( changed( "8 / 4 / 2 == 1", INTEGER, 0L, 0L ) );
+  }
+
+  @Test
+  public void testPercent() throws Exception {
+    String condition = "abs(new - old) / abs(old) > 5%";
+    assertFalse( changed( condition, NUMBER, 100.0, 104.0 ) );
+    assertTrue( changed( condition, NUMBER, 100.0, 106.0 ) );
+    assertTrue( changed( condition, NUMBER, 100.0, 94.0 ) );
+    assertTrue( changed( condition, INTEGER, 100L, 106L ) );
+  }
+
+  @Test
+  public void testZeroDivision() throws Exception {
+    // 0 / 0 is NaN: every comparison with it is false, except !=
+    assertFalse( changed( "abs(new - old) / abs(old) > 5%", NUMBER, 0.0, 0.0 ) );
+    assertFalse( changed( "new / old >= 1", INTEGER, 0L, 0L ) );
+    assertTrue( changed( "new / old != 1", INTEGER, 0L, 0L ) );
+    // x / 0 is infinite
+    assertTrue( changed( "abs(new - old) / abs(old) > 5%", NUMBER, 0.0, 1.0 ) );
+  }
+
+  @Test
+  public void testStrings() throws Exception {
+    assertTrue( changed( "new == 'it''s'", STRING, "x", "it's" ) );
+    assertFalse( changed( "new == 'it''s'", STRING, "x", "its" ) );
+    assertTrue( changed( "new == ''''", STRING, "x", "'" ) );
+    assertFalse( changed( "prefix(old, 3) != prefix(new, 3)", STRING, "ABCD", "ABCE" ) );
+    assertTrue( changed( "prefix(old, 3) != prefix(new, 3)", STRING, "ABC", "ABD" ) );
+    assertFalse( changed( "prefix(old, 10) != prefix(new, 10)", STRING, "AB", "AB" ) );
+    assertFalse( changed( "lower(trim(old)) != lower(trim(new))", STRING, " Abc ", "aBC" ) );
+    assertTrue( changed( "upper(new) > upper(old)", STRING, "abc", "abd" ) );
+    assertTrue( changed( "len(new) - len(old) >= 2", STRING, "a", "abc" ) );
+  }
+
+  @Test
+  public void testBooleans() throws Exception {
+    assertTrue( changed( "old != new", BOOLEAN, Boolean.TRUE, Boolean.FALSE ) );
+    assertFalse( changed( "old != new", BOOLEAN, Boolean.TRUE, Boolean.TRUE ) );
+    assertTrue( changed( "!old && new", BOOLEAN, Boolean.FALSE, Boolean.TRUE ) );
+  }
+
+  @Test
+  public void testPrecision() throws Exception {
+    // Integers beyond 2^53 are rounded to the same double, the condition misses the change
+    long large = 1L << 53;
+    assertFalse( changed( "old != new", INTEGER, large, large + 1 ) );
+    assertTrue( changed( "old != new", INTEGER, large, large + 2 ) );
+    assertFalse( ChangeCondition.isExact( INTEGER ) );
+    assertTrue( ChangeCondition.isExact( NUMBER ) );
+    assertTrue( ChangeCondition.isExact( STRING ) );
+  }
+
+  @Test
+  public void testNulls() throws Exception {
+    // The condition is not evaluated when a value is null; only null to non-null (or back) is a change
+    assertTrue( changed( "abs(new - old) > 10", INTEGER, null, 5L ) );
+    assertTrue( changed( "abs(new - old) > 10", INTEGER, 5L, null ) );
+    assertFalse( changed( "abs(new - old) > 10", INTEGER, null, null ) );
+    assertTrue( changed( "len(new) > 100", STRING, "a", null ) );
+  }
+
+  @Test
+  public void testErrors() throws Exception {
+    assertError( "old > #", "unexpected '#' at position 7" );
+    assertError( "x", "unexpected '<end>' at position 2" );
+    assertError( "old +", "unexpected '<end>' at position 6" );
+    assertError( "old > 1 )", "unexpected ')' at position 9" );
+    assertError( "'abc", "unexpected ''' at position 1" );
+    assertError( "foo(old)", "unknown function 'foo' at position 1" );
+    assertError( "old + 'a' > 1", "wrong type at position 5" );
+    assertError( "old == 'a'", "wrong type at position 5" );
+    assertError( "len(old) > 1", "wrong type at position" );
+    assertError( "old > 1 && 2", "wrong type at position" );
+    assertError( "new - old", "must evaluate to true or false" );
+  }
+
+  private static boolean changed( String condition, ValueMetaInterface valueMeta, Object oldValue, Object newValue )
+    throws KettleException {
+    return ChangeCondition.compile( condition, valueMeta ).isChanged( oldValue, newValue );
+  }
+
+  private static void assertError( String condition, String expected ) {
+    try {
+      ChangeCondition.compile( condition, INTEGER );
+      fail( "Expected an error for " + condition );
+    } catch ( KettleException e ) {
+      assertTrue( e.getMessage(), e.getMessage().contains( expected ) );
+    }
+  }
+}
@@ -0,0 +1,180 @@
+/*******************************************************************************
+ *
+ * Pentaho Data Integration
+ *
+ * Copyright (C) 2002-2012 by Pentaho : http://www.pentaho.com
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+package org.pentaho.di.trans.steps.detectrowchange;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class ChangeWindowTest {
+
+  @Test
+  public void testSuppressesFlapping() {
+    ChangeWindow window = new ChangeWindow( 3, 1 );
+    assertFalse( window.contains( 0, "A" ) );
+    window.add( row( "A" ), 0 );
+    assertFalse( window.contains( 0, "B" ) );
+    window.add( row( "B" ), 0 );
+    // A -> B -> A: the second A is still in the window, so it is not a change
+    assertTrue( window.contains( 0, "A" ) );
+    window.add( row( "A" ), 0 );
+    assertFalse( window.contains( 0, "C" ) );
+  }
+
+  @Test
+  public void testFullWindowEvictsOldest() {
+    ChangeWindow window = new ChangeWindow( 2, 1 );
+    assertFalse( window.add( row( "A" ), 0 ) );
+    assertFalse( window.add( row( "B" ), 0 ) );
+    assertTrue( window.add( row( "C" ), 0 ) );
+    assertEquals( 2, window.size() );
+    assertFalse( window.contains( 0, "A" ) );
+    assertTrue( window.contains( 0, "B" ) );
+    assertTrue( window.contains( 0, "C" ) );
+  }
+
+  @Test
+  public void testTimeEviction() {
+    ChangeWindow window = new ChangeWindow( 8, 1 );
+    window.add( row( "A" ), 0 );
+    window.add( row( "B" ), 1000 );
+    window.add( row( "C" ), 2000 );
+    window.evictOlderThan( 1000 );
+    assertEquals( 2, window.size() );
+    assertFalse( window.contains( 0, "A" ) );
+    assertTrue( window.contains( 0, "B" ) );
+    window.evictOlderThan( 5000 );
+    assertEquals( 0, window.size() );
+    assertFalse( window.contains( 0, "C" ) );
+  }
+
+  @Test
+  public void testOutOfOrderTimes() {
+    ChangeWindow window = new ChangeWindow( 8, 1 );
+    window.add( row( "A" ), 0 );
+    window.add( row( "B" ), 2000 );
+    // Late row: kept as long as B, not stuck behind it
+    window.add( row( "C" ), 500 );
+    window.add( row( "D" ), 3000 );
+    window.evictOlderThan( 1000 );
+    assertFalse( window.contains( 0, "A" ) );
+    assertTrue( window.contains( 0, "C" ) );
+    window.evictOlderThan( 2500 );
+    assertEquals( 1, window.size() );
+    assertFalse( window.contains( 0, "B" ) );
+    assertFalse( window.contains( 0, "C" ) );
+    assertTrue( window.contains( 0, "D" ) );
+  }
+
+  @Test
+  public void testGrowsUpToMaxCapacity() {
+    ChangeWindow window = new ChangeWindow( 2, 4, 1 );
+    window.add( row( "A" ), 0 );
+    window.add( row( "B" ), 1 );
+    window.evictOlderThan( 1 );
+    // C wraps around to the first slot, D makes the window grow
+    assertFalse( window.add( row( "C" ), 2 ) );
+    assertFalse( window.add( row( "D" ), 3 ) );
+    window.evictOlderThan( 2 );
+    assertFalse( window.contains( 0, "B" ) );
+    assertTrue( window.contains( 0, "C" ) );
+    assertTrue( window.contains( 0, "D" ) );
+    assertFalse( window.add( row( "E" ), 4 ) );
+    assertFalse( window.add( row( "F" ), 5 ) );
+    assertEquals( 4, window.size() );
+    // At the maximum capacity the oldest row makes room
+    assertTrue( window.add( row( "G" ), 6 ) );
+    assertEquals( 4, window.size() );
+    assertFalse( window.contains( 0, "C" ) );
+    assertTrue( window.contains( 0, "D" ) );
+    assertTrue( window.contains( 0, "G" ) );
+  }
+
+  @Test
+  public void testLargeWindowAllocatesAsRowsArrive() {
+    // Allocating every slot up front would not fit in the heap
+    ChangeWindow window = new ChangeWindow( Integer.MAX_VALUE, 1000 );
+    assertFalse( window.add( new Object[1000], 0 ) );
+    assertEquals( 1, window.size() );
+
+    ChangeWindow fixed = new ChangeWindow( ChangeWindow.INITIAL_CAPACITY + 10, 1 );
+    for ( int i = 0; i < ChangeWindow.INITIAL_CAPACITY + 10; i++ ) {
+      assertFalse( fixed.add( row( Integer.valueOf( i ) ), 0 ) );
+    }
+    assertTrue( fixed.add( row( "last" ), 0 ) );
+    assertFalse( fixed.contains( 0, Integer.valueOf( 0 ) ) );
+    assertTrue( fixed.contains( 0, Integer.valueOf( 1 ) ) );
+  }
+
+  @Test
+  public void testDistinctCount() {
+    ChangeWindow window = new ChangeWindow( 3, 2 );
+    window.add( row( "A", 1L ), 0 );
+    assertEquals( 1, window.getDistinctCount( 0 ) );
+    window.add( row( "A", 2L ), 0 );
+    assertEquals( 1, window.getDistinctCount( 0 ) );
+    assertEquals( 2, window.getDistinctCount( 1 ) );
+    window.add( row( "B", 1L ), 0 );
+    assertEquals( 2, window.getDistinctCount( 0 ) );
+    assertEquals( 2, window.getDistinctCount( 1 ) );
+    // Evicts the first A: the count of field 0 goes up with C
+    window.add( row( "C", 1L ), 0 );
+    assertEquals( 3, window.getDistinctCount( 0 ) );
+    assertEquals( 2, window.getDistinctCount( 1 ) );
+    // Evicts the last A and 2
+    window.add( row( "C", 1L ), 0 );
+    assertEquals( 2, window.getDistinctCount( 0 ) );
+    assertEquals( 1, window.getDistinctCount( 1 ) );
+  }
+
+  @Test
+  public void testNulls() {
+    ChangeWindow window = new ChangeWindow( 2, 1 );
+    assertFalse( window.contains( 0, null ) );
+    window.add( row( (Object) null ), 0 );
+    assertTrue( window.contains( 0, null ) );
+    assertEquals( 1, window.getDistinctCount( 0 ) );
+    window.add( row( "A" ), 0 );
+    assertEquals( 2, window.getDistinctCount( 0 ) );
+    window.add( row( "A" ), 0 );
+    assertFalse( window.contains( 0, null ) );
+    assertEquals( 1, window.getDistinctCount( 0 ) );
+  }
+
+  @Test
+  public void testReusesRowArray() {
+    ChangeWindow window = new ChangeWindow( 2, 1 );
+    Object[] values = row( "A" );
+    window.add( values, 0 );
+    values[0] = "B";
+    window.add( values, 0 );
+    assertTrue( window.contains( 0, "A" ) );
+    assertTrue( window.contains( 0, "B" ) );
+  }
+
+  private static Object[] row( Object... values ) {
+    return values;
+  }
+}